@@ -0,0 +1,136 @@
+---
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+---
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Адаптивный размер выборки (fetch size) для разделов временного хранилища в пределах бюджета памяти узла.
+ * <p>
+ * Размер выборки раздела удваивается, пока раздел отстает и выборки возвращаются заполненными, и уменьшается вдвое,
+ * когда выборки заполнены меньше чем на четверть. Сумма размеров выборок всех разделов узла не превышает бюджета:
+ * рост раздела, на который бюджета не хватает, откладывается до освобождения памяти другими разделами. Каждому
+ * разделу гарантирован минимальный размер.
+ * <p>
+ * Вариант использования:
+ *
+ * <pre>
+ * AdaptiveFetchSizer sizer = new AdaptiveFetchSizer(64 * 1024, 8 * 1024 * 1024, 128 * 1024 * 1024);
+ * int fetchSize = sizer.getFetchSize(shard);
+ * ...
+ * sizer.onFetch(shard, fetchedBytes, highWatermark - nextOffset);
+ * </pre>
+ * <p>
+ * <b>Synchronization</b>
+ * <p>
+ * Экземпляр данного класса является потокобезопасным.
+ */
+public class AdaptiveFetchSizer
+{
+    /**
+     * Доля размера выборки, начиная с которой выборка считается заполненной.
+     */
+    private static final double FULL_RATIO = 0.9;
+    /**
+     * Доля размера выборки, ниже которой выборка считается разреженной.
+     */
+    private static final double SPARSE_RATIO = 0.25;
+    private final int minFetchSize;
+    private final int maxFetchSize;
+    private final long nodeBudget;
+    private final ConcurrentMap<Shard, Integer> sizes = new ConcurrentHashMap<>();
+    private long allocated;
+
+    /**
+     * Конструктор.
+     *
+     * @param minFetchSize минимальный размер выборки раздела в байтах
+     * @param maxFetchSize максимальный размер выборки раздела в байтах
+     * @param nodeBudget бюджет памяти узла на выборки всех разделов в байтах
+     */
+    public AdaptiveFetchSizer(int minFetchSize, int maxFetchSize, long nodeBudget)
+    {
+        checkArgument(minFetchSize > 0);
+        checkArgument(maxFetchSize >= minFetchSize);
+        checkArgument(nodeBudget >= maxFetchSize);
+        this.minFetchSize = minFetchSize;
+        this.maxFetchSize = maxFetchSize;
+        this.nodeBudget = nodeBudget;
+    }
+
+    /**
+     * Возвращает размер следующей выборки раздела. Раздел, для которого размер запрашивается впервые, получает
+     * минимальный размер.
+     *
+     * @param shard раздел
+     * @return размер выборки в байтах
+     */
+    public int getFetchSize(Shard shard)
+    {
+        Integer size = sizes.get(shard);
+        if (size != null)
+            return size;
+        synchronized (this)
+        {
+            size = sizes.get(shard);
+            if (size == null)
+            {
+                size = minFetchSize;
+                sizes.put(shard, size);
+                allocated += size;
+            }
+            return size;
+        }
+    }
+
+    /**
+     * Учитывает результат выборки раздела.
+     *
+     * @param shard раздел
+     * @param fetchedBytes объем выборки в байтах
+     * @param lag отставание раздела от конца журнала в сообщениях, -1 - неизвестно
+     */
+    public void onFetch(Shard shard, int fetchedBytes, long lag)
+    {
+        int size = getFetchSize(shard);
+        int target = size;
+        if (fetchedBytes >= size * FULL_RATIO && lag != 0)
+            target = (int)Math.min(maxFetchSize, size * 2L);
+        else if (fetchedBytes < size * SPARSE_RATIO)
+            target = Math.max(minFetchSize, size / 2);
+        if (target == size)
+            return;
+        synchronized (this)
+        {
+            Integer current = sizes.get(shard);
+            if (current == null || current != size)
+                return;
+            if (target > size && allocated + target - size > nodeBudget)
+                return;
+            sizes.put(shard, target);
+            allocated += target - size;
+        }
+    }
+
+    /**
+     * Возвращает бюджет раздела, который больше не читается на этом узле.
+     *
+     * @param shard раздел
+     */
+    public synchronized void release(Shard shard)
+    {
+        Integer size = sizes.remove(shard);
+        if (size != null)
+            allocated -= size;
+    }
+
+    /**
+     * Возвращает суммарный размер выборок всех разделов.
+     *
+     * @return размер в байтах
+     */
+    public synchronized long getAllocated()
+    {
+        return allocated;
+    }
+}
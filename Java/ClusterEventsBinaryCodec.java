@@ -0,0 +1,251 @@
+---
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+---
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileGenerator;
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Компактный бинарный формат сообщений временного хранилища для {@link ClusterEvents}.
+ * <p>
+ * Формат сообщения (все длины и количества - беззнаковые varint):
+ *
+ * <pre>
+ * MAGIC(1) VERSION(1) длина_имени_ИБ имя_ИБ(UTF-8) количество_событий массив_событий(Smile)
+ * </pre>
+ *
+ * События пачки кодируются одним массивом Smile (бинарный JSON Jackson): числа - zigzag varint, строки - с
+ * префиксом длины, поэтому модель событий не дублируется в кодеке. Заголовок Smile пишется один раз на сообщение, а
+ * имена полей и повторяющиеся короткие строки после первого появления заменяются ссылками. Первый байт сообщения
+ * никогда не совпадает с первым байтом JSON, что позволяет читателю различать форматы.
+ * <p>
+ * Версия 1 кодировала каждое событие отдельным документом Smile с префиксом длины:
+ * {@code { длина_события событие }*}. Такие сообщения по-прежнему читаются.
+ * <p>
+ * Вариант использования:
+ *
+ * <pre>
+ * ClusterEventsBinaryCodec codec = new ClusterEventsBinaryCodec();
+ * byte[] message = codec.serialize(events);
+ * ClusterEvents restored = codec.deserialize(message);
+ * </pre>
+ *
+ * Если читателю передан реестр словарей, то сообщения, сжатые {@link CompressingBinarySerializer}, распаковываются
+ * прозрачно:
+ *
+ * <pre>
+ * ClusterEventsBinaryCodec codec = new ClusterEventsBinaryCodec(dictionaries);
+ * ClusterEvents restored = codec.deserialize(message);
+ * </pre>
+ * <p>
+ * <b>Synchronization</b>
+ * <p>
+ * Экземпляр данного класса является потокобезопасным.
+ */
+public class ClusterEventsBinaryCodec implements IBinarySerializer
+{
+    /**
+     * Признак бинарного формата.
+     */
+    public static final byte MAGIC = (byte)0xB1;
+    /**
+     * Текущая версия формата.
+     */
+    public static final byte VERSION = 2;
+    /**
+     * Версия с отдельным документом Smile на событие.
+     */
+    private static final byte VERSION_PER_EVENT = 1;
+    /**
+     * Буфер сообщения переиспользуется в пределах потока, чтобы сериализация не порождала промежуточных массивов на
+     * каждый вызов.
+     */
+    private static final ThreadLocal<ReusableOutputStream> MESSAGE_BUFFER = ThreadLocal.withInitial(
+            () -> new ReusableOutputStream(4096, 1024 * 1024));
+    private final ObjectMapper mapper = new ObjectMapper(new SmileFactory()
+            .enable(SmileGenerator.Feature.CHECK_SHARED_NAMES)
+            .enable(SmileGenerator.Feature.CHECK_SHARED_STRING_VALUES))
+            .disable(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+    private final CompressionDictionaries dictionaries;
+
+    /**
+     * Конструктор. Сжатые сообщения не поддерживаются.
+     */
+    public ClusterEventsBinaryCodec()
+    {
+        this(null);
+    }
+
+    /**
+     * Конструктор.
+     *
+     * @param dictionaries словари для распаковки сжатых сообщений, {@code null} - сжатые сообщения не поддерживаются
+     */
+    public ClusterEventsBinaryCodec(CompressionDictionaries dictionaries)
+    {
+        this.dictionaries = dictionaries;
+    }
+
+    /**
+     * Проверяет, записано ли сообщение в данном формате.
+     *
+     * @param data содержимое сообщения
+     * @return {@code true}, если сообщение в бинарном формате
+     */
+    public static boolean isBinary(byte[] data)
+    {
+        return data != null && data.length > 0 && data[0] == MAGIC;
+    }
+
+    @Override
+    public byte[] serialize(ClusterEvents events) throws SerializeException
+    {
+        checkArgument(events != null);
+        try
+        {
+            List<IssuedEvent> list = events.getEvents();
+            ReusableOutputStream out = MESSAGE_BUFFER.get();
+            out.reset();
+            out.write(MAGIC);
+            out.write(VERSION);
+            byte[] ibName = events.getIbName().getBytes(StandardCharsets.UTF_8);
+            writeVarInt(out, ibName.length);
+            out.write(ibName);
+            writeVarInt(out, list.size());
+            // Один генератор на пачку: таблица общих имен полей действует для всех событий сообщения.
+            try (JsonGenerator generator = mapper.getFactory().createGenerator(out))
+            {
+                generator.writeStartArray();
+                for (IssuedEvent event : list)
+                    mapper.writeValue(generator, event);
+                generator.writeEndArray();
+            }
+            // Продюсер принимает только byte[], поэтому единственная копия - итоговое сообщение точного размера.
+            return out.toByteArray();
+        }
+        catch (IOException e)
+        {
+            throw new SerializeException(Messages.failed_serialize(), e);
+        }
+    }
+
+    /**
+     * Восстанавливает события из сообщения.
+     *
+     * @param data содержимое сообщения
+     * @return события
+     * @throws SerializeException если сообщение повреждено или записано в неподдерживаемой версии формата
+     */
+    public ClusterEvents deserialize(byte[] data) throws SerializeException
+    {
+        checkArgument(data != null);
+        if (dictionaries != null)
+            data = CompressingBinarySerializer.decompress(data, dictionaries);
+        if (!isBinary(data) || data.length < 2 || (data[1] != VERSION && data[1] != VERSION_PER_EVENT))
+            throw new SerializeException(Messages.unsupported_format());
+        try
+        {
+            ByteBuffer in = ByteBuffer.wrap(data, 2, data.length - 2);
+            int ibNameLength = readVarInt(in);
+            String ibName = new String(data, in.position(), ibNameLength, StandardCharsets.UTF_8);
+            in.position(in.position() + ibNameLength);
+            int count = readVarInt(in);
+            // Количество используется только для оценки емкости, поэтому поврежденное значение ограничивается.
+            List<IssuedEvent> events = new ArrayList<>(Math.min(count, in.remaining()));
+            if (data[1] == VERSION_PER_EVENT)
+            {
+                for (int i = 0; i < count; ++i)
+                {
+                    int length = readVarInt(in);
+                    events.add(mapper.readValue(data, in.position(), length, IssuedEvent.class));
+                    in.position(in.position() + length);
+                }
+                return new ClusterEvents(ibName, events);
+            }
+            try (JsonParser parser = mapper.getFactory().createParser(data, in.position(), in.remaining()))
+            {
+                if (parser.nextToken() != JsonToken.START_ARRAY)
+                    throw new SerializeException(Messages.failed_deserialize());
+                while (parser.nextToken() == JsonToken.START_OBJECT)
+                    events.add(mapper.readValue(parser, IssuedEvent.class));
+                if (parser.getCurrentToken() != JsonToken.END_ARRAY || events.size() != count)
+                    throw new SerializeException(Messages.failed_deserialize());
+            }
+            return new ClusterEvents(ibName, events);
+        }
+        catch (IOException | BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException e)
+        {
+            throw new SerializeException(Messages.failed_deserialize(), e);
+        }
+    }
+
+    /**
+     * Записывает беззнаковый varint.
+     *
+     * @param out поток
+     * @param value значение, не отрицательное
+     */
+    static void writeVarInt(ByteArrayOutputStream out, int value)
+    {
+        while ((value & ~0x7F) != 0)
+        {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    /**
+     * Читает беззнаковый varint.
+     *
+     * @param in буфер
+     * @return значение
+     */
+    static int readVarInt(ByteBuffer in)
+    {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7)
+        {
+            byte b = in.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+            {
+                checkArgument(value >= 0, "Malformed varint");
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    @Localizable
+    interface IMessagesList
+    {
+        IMessagesList Messages = LocalizableFactory.create(IMessagesList.class);
+
+        @DefaultString("Cannot serialize events.")
+        @Context("Ошибка сериализации событий в бинарный формат.")
+        @Tags({"logs"})
+        String failed_serialize();
+
+        @DefaultString("Cannot deserialize events.")
+        @Context("Ошибка чтения событий из бинарного формата.")
+        @Tags({"logs"})
+        String failed_deserialize();
+
+        @DefaultString("Unsupported events message format.")
+        @Context("Если сообщение временного хранилища записано в неизвестном формате или версии.")
+        @Tags({"logs"})
+        String unsupported_format();
+    }
+}
@@ -0,0 +1,71 @@
+---
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+---
+import com.fasterxml.jackson.databind.ObjectMapper;
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Выделение памяти при сериализации пачки событий для {@link KafkaWriter}: прежний путь через строку JSON и ее
+ * байты и {@link ClusterEventsBinaryCodec} с буфером сообщения, переиспользуемым в пределах потока. Байты на
+ * операцию показывает профилировщик GC ({@code gc.alloc.rate.norm}).
+ * <p>
+ * Пачка берется из реального сообщения временного хранилища в бинарном формате, например выгруженного из раздела:
+ *
+ * <pre>
+ * java -jar benchmarks.jar ClusterEventsSerializationBenchmark -prof gc -p sample=/path/to/message.bin
+ * </pre>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class ClusterEventsSerializationBenchmark
+{
+    /**
+     * Файл с сообщением в формате {@link ClusterEventsBinaryCodec}.
+     */
+    @Param("")
+    public String sample;
+    private final ObjectMapper json = new ObjectMapper();
+    private final ClusterEventsBinaryCodec codec = new ClusterEventsBinaryCodec();
+    private ClusterEvents events;
+
+    @Setup
+    public void setUp() throws IOException, SerializeException
+    {
+        checkArgument(!sample.isEmpty(), "Sample message is not set: -p sample=<file>");
+        events = codec.deserialize(Files.readAllBytes(Paths.get(sample)));
+    }
+
+    /**
+     * Прежний путь: строка JSON, затем ее байты.
+     */
+    @Benchmark
+    public byte[] jsonString() throws IOException
+    {
+        return json.writeValueAsString(events).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public byte[] binaryCodec() throws SerializeException
+    {
+        return codec.serialize(events);
+    }
+}
@@ -0,0 +1,194 @@
+---
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+---
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Стадия сжатия сообщений временного хранилища. Оборачивает любой {@link IBinarySerializer} и сжимает результат
+ * алгоритмом deflate, используя словарь ИБ из {@link CompressionDictionaries}, если он зарегистрирован.
+ * <p>
+ * Формат сжатого сообщения (длина - беззнаковый varint):
+ *
+ * <pre>
+ * MAGIC(1) VERSION(1) FLAGS(1) [ID_СЛОВАРЯ(4)] исходная_длина данные_deflate
+ * </pre>
+ *
+ * Сообщения меньше порога не сжимаются и передаются как есть, {@link #decompress(byte[], CompressionDictionaries)}
+ * возвращает такие сообщения без изменений.
+ * <p>
+ * Вариант использования:
+ *
+ * <pre>
+ * IBinarySerializer serializer = new CompressingBinarySerializer(new ClusterEventsBinaryCodec(), dictionaries, 512);
+ * KafkaWriter kafkaWriter = new KafkaWriter(topic, writers, serializer, batchConfig);
+ * </pre>
+ * <p>
+ * <b>Synchronization</b>
+ * <p>
+ * Экземпляр данного класса является потокобезопасным.
+ */
+public class CompressingBinarySerializer implements IBinarySerializer
+{
+    /**
+     * Признак сжатого сообщения.
+     */
+    public static final byte MAGIC = (byte)0xC1;
+    private static final byte VERSION = 1;
+    private static final int FLAG_DICTIONARY = 0x01;
+    /**
+     * Максимальный размер распакованного сообщения. Размер читается из сообщения, поэтому поврежденное сообщение не
+     * должно приводить к выделению произвольного объема памяти.
+     */
+    private static final int MAX_RAW_SIZE = 64 * 1024 * 1024;
+    /**
+     * Компрессор держит нативную память, поэтому переиспользуется в пределах потока.
+     */
+    private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal.withInitial(() -> new Deflater(
+            Deflater.BEST_SPEED, true));
+    private static final ThreadLocal<ReusableOutputStream> BUFFER = ThreadLocal.withInitial(
+            () -> new ReusableOutputStream(4096, 1024 * 1024));
+    private final IBinarySerializer delegate;
+    private final CompressionDictionaries dictionaries;
+    private final int minSize;
+
+    /**
+     * Конструктор.
+     *
+     * @param delegate сериализатор, результат которого сжимается
+     * @param dictionaries словари ИБ
+     * @param minSize минимальный размер сообщения для сжатия в байтах
+     */
+    public CompressingBinarySerializer(IBinarySerializer delegate, CompressionDictionaries dictionaries, int minSize)
+    {
+        checkArgument(delegate != null);
+        checkArgument(dictionaries != null);
+        checkArgument(minSize >= 0);
+        this.delegate = delegate;
+        this.dictionaries = dictionaries;
+        this.minSize = minSize;
+    }
+
+    @Override
+    public byte[] serialize(ClusterEvents events) throws SerializeException
+    {
+        byte[] raw = delegate.serialize(events);
+        if (raw.length < minSize)
+            return raw;
+        CompressionDictionaries.Dictionary dictionary = dictionaries.forIbName(events.getIbName());
+        Deflater deflater = DEFLATER.get();
+        deflater.reset();
+        if (dictionary != null)
+            deflater.setDictionary(dictionary.getData());
+        deflater.setInput(raw);
+        deflater.finish();
+        ReusableOutputStream out = BUFFER.get();
+        out.reset();
+        out.write(MAGIC);
+        out.write(VERSION);
+        out.write(dictionary != null ? FLAG_DICTIONARY : 0);
+        if (dictionary != null)
+        {
+            int id = dictionary.getId();
+            out.write(id >>> 24);
+            out.write(id >>> 16);
+            out.write(id >>> 8);
+            out.write(id);
+        }
+        ClusterEventsBinaryCodec.writeVarInt(out, raw.length);
+        out.deflate(deflater);
+        // Несжимаемые данные выгоднее передать как есть.
+        return out.size() < raw.length ? out.toByteArray() : raw;
+    }
+
+    /**
+     * Проверяет, является ли сообщение сжатым.
+     *
+     * @param data содержимое сообщения
+     * @return {@code true}, если сообщение сжато
+     */
+    public static boolean isCompressed(byte[] data)
+    {
+        return data != null && data.length > 0 && data[0] == MAGIC;
+    }
+
+    /**
+     * Распаковывает сообщение. Несжатое сообщение возвращается без изменений.
+     *
+     * @param data содержимое сообщения
+     * @param dictionaries словари ИБ
+     * @return исходное содержимое сообщения
+     * @throws SerializeException если сообщение повреждено, слишком велико или словарь неизвестен
+     */
+    public static byte[] decompress(byte[] data, CompressionDictionaries dictionaries) throws SerializeException
+    {
+        checkArgument(dictionaries != null);
+        if (!isCompressed(data))
+            return data;
+        Inflater inflater = new Inflater(true);
+        try
+        {
+            ByteBuffer in = ByteBuffer.wrap(data);
+            in.get();
+            if (in.get() != VERSION)
+                throw new SerializeException(Messages.unsupported_compression());
+            int flags = in.get();
+            if ((flags & FLAG_DICTIONARY) != 0)
+            {
+                CompressionDictionaries.Dictionary dictionary = dictionaries.byId(in.getInt());
+                if (dictionary == null)
+                    throw new SerializeException(Messages.unknown_dictionary());
+                inflater.setDictionary(dictionary.getData());
+            }
+            int rawLength = ClusterEventsBinaryCodec.readVarInt(in);
+            if (rawLength > MAX_RAW_SIZE)
+                throw new SerializeException(Messages.failed_decompress());
+            byte[] raw = new byte[rawLength];
+            inflater.setInput(data, in.position(), in.remaining());
+            int length = 0;
+            while (length < raw.length && !inflater.finished())
+            {
+                int read = inflater.inflate(raw, length, raw.length - length);
+                if (read == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    break;
+                length += read;
+            }
+            if (length != raw.length)
+                throw new SerializeException(Messages.failed_decompress());
+            return raw;
+        }
+        catch (DataFormatException | IOException | BufferUnderflowException | IllegalArgumentException e)
+        {
+            throw new SerializeException(Messages.failed_decompress(), e);
+        }
+        finally
+        {
+            inflater.end();
+        }
+    }
+
+    @Localizable
+    interface IMessagesList
+    {
+        IMessagesList Messages = LocalizableFactory.create(IMessagesList.class);
+
+        @DefaultString("Cannot decompress events message.")
+        @Context("Ошибка распаковки сообщения временного хранилища.")
+        @Tags({"logs"})
+        String failed_decompress();
+
+        @DefaultString("Unsupported events message compression.")
+        @Context("Если сообщение временного хранилища сжато неизвестной версией формата.")
+        @Tags({"logs"})
+        String unsupported_compression();
+
+        @DefaultString("Compression dictionary of the events message is unknown.")
+        @Context("Если для распаковки сообщения нужен словарь, который не зарегистрирован у читателя.")
+        @Tags({"logs"})
+        String unknown_dictionary();
+    }
+}
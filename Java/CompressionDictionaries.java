@@ -0,0 +1,174 @@
+---
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.Adler32;
+---
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Реестр словарей сжатия по информационным базам для {@link CompressingBinarySerializer}. События одной ИБ
+ * повторяют одних и тех же пользователей, хосты, приложения и имена событий, поэтому словарь, обученный на
+ * сообщениях этой ИБ, заметно улучшает сжатие небольших пакетов.
+ * <p>
+ * Словарь идентифицируется контрольной суммой Adler-32 (так же, как в формате deflate). Словари распространяются
+ * между процессами через общее хранилище {@link ICompressionDictionaryStore}: словарь сохраняется в нем до того, как
+ * писатель начнет им сжимать, а читатель загружает неизвестный ему словарь по идентификатору из сообщения.
+ * <p>
+ * Вариант использования:
+ *
+ * <pre>
+ * CompressionDictionaries dictionaries = new CompressionDictionaries(store);
+ * dictionaries.train(ibName, samples);
+ * </pre>
+ * <p>
+ * <b>Synchronization</b>
+ * <p>
+ * Экземпляр данного класса является потокобезопасным.
+ */
+public class CompressionDictionaries
+{
+    /**
+     * Максимальный размер словаря (размер окна deflate).
+     */
+    public static final int MAX_DICTIONARY_SIZE = 32 * 1024;
+    private final ConcurrentMap<String, Dictionary> byIbName = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Integer, Dictionary> byId = new ConcurrentHashMap<>();
+    private final ICompressionDictionaryStore store;
+
+    /**
+     * Конструктор.
+     *
+     * @param store общее хранилище словарей
+     */
+    public CompressionDictionaries(ICompressionDictionaryStore store)
+    {
+        checkArgument(store != null);
+        this.store = store;
+    }
+
+    /**
+     * Сохраняет словарь в общем хранилище и регистрирует его для ИБ. Ранее зарегистрированный словарь ИБ остается
+     * доступным для чтения старых сообщений по идентификатору.
+     *
+     * @param ibName имя ИБ
+     * @param data содержимое словаря
+     * @return идентификатор словаря
+     * @throws IOException если словарь не удалось сохранить, в этом случае он не регистрируется
+     */
+    public int register(String ibName, byte[] data) throws IOException
+    {
+        checkArgument(ibName != null);
+        checkArgument(data != null && data.length > 0 && data.length <= MAX_DICTIONARY_SIZE);
+        Dictionary dictionary = new Dictionary(checksum(data), data.clone());
+        // Писатель не должен сжимать словарем, которого читатели не смогут получить.
+        store.save(dictionary.getId(), dictionary.getData());
+        byId.put(dictionary.getId(), dictionary);
+        byIbName.put(ibName, dictionary);
+        return dictionary.getId();
+    }
+
+    /**
+     * Обучает и регистрирует словарь для ИБ по образцам сообщений. Наиболее свежие образцы попадают в конец
+     * словаря, т.к. deflate дешевле ссылается на близкие данные.
+     *
+     * @param ibName имя ИБ
+     * @param samples несжатые сообщения ИБ, от старых к новым
+     * @return идентификатор словаря
+     * @throws IOException если словарь не удалось сохранить
+     */
+    public int train(String ibName, List<byte[]> samples) throws IOException
+    {
+        checkArgument(samples != null && !samples.isEmpty());
+        ByteArrayOutputStream out = new ByteArrayOutputStream(MAX_DICTIONARY_SIZE);
+        int total = 0;
+        int first = samples.size();
+        while (first > 0 && total + samples.get(first - 1).length <= MAX_DICTIONARY_SIZE)
+            total += samples.get(--first).length;
+        if (first == samples.size())
+        {
+            // Даже самый свежий образец больше словаря - берем его хвост.
+            byte[] last = samples.get(samples.size() - 1);
+            out.write(last, last.length - MAX_DICTIONARY_SIZE, MAX_DICTIONARY_SIZE);
+        }
+        for (int i = first; i < samples.size(); ++i)
+            out.write(samples.get(i), 0, samples.get(i).length);
+        return register(ibName, out.toByteArray());
+    }
+
+    /**
+     * Возвращает актуальный словарь ИБ.
+     *
+     * @param ibName имя ИБ
+     * @return словарь или {@code null}
+     */
+    public Dictionary forIbName(String ibName)
+    {
+        return byIbName.get(ibName);
+    }
+
+    /**
+     * Возвращает словарь по идентификатору. Неизвестный словарь загружается из общего хранилища.
+     *
+     * @param id идентификатор
+     * @return словарь или {@code null}, если словарь не найден
+     * @throws IOException при ошибке хранилища
+     */
+    public Dictionary byId(int id) throws IOException
+    {
+        Dictionary dictionary = byId.get(id);
+        if (dictionary != null)
+            return dictionary;
+        byte[] data = store.load(id);
+        // Содержимое проверяется по идентификатору: поврежденный словарь хуже отсутствующего.
+        if (data == null || data.length == 0 || data.length > MAX_DICTIONARY_SIZE || checksum(data) != id)
+            return null;
+        dictionary = new Dictionary(id, data);
+        Dictionary previous = byId.putIfAbsent(id, dictionary);
+        return previous != null ? previous : dictionary;
+    }
+
+    private static int checksum(byte[] data)
+    {
+        Adler32 adler = new Adler32();
+        adler.update(data, 0, data.length);
+        return (int)adler.getValue();
+    }
+
+    /**
+     * Словарь сжатия.
+     */
+    public static final class Dictionary
+    {
+        private final int id;
+        private final byte[] data;
+
+        private Dictionary(int id, byte[] data)
+        {
+            this.id = id;
+            this.data = data;
+        }
+
+        /**
+         * Возвращает идентификатор словаря (Adler-32).
+         *
+         * @return идентификатор
+         */
+        public int getId()
+        {
+            return id;
+        }
+
+        /**
+         * Возвращает содержимое словаря. Массив не следует изменять.
+         *
+         * @return содержимое
+         */
+        byte[] getData()
+        {
+            return data;
+        }
+    }
+}
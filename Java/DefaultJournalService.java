@@ -4,6 +4,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 ---
 import static com.google.common.base.Preconditions.checkArgument;
 
@@ -13,7 +14,9 @@ import static com.google.common.base.Preconditions.checkArgument;
  * <p>
  * <b>Synchronization</b>
  * <p>
- * Экземпляр данного класса не является потокобезопасным.
+ * Экземпляр данного класса не является потокобезопасным. Исключение - сервис с групповой записью (см.
+ * {@link #createMixed(IKafkaWriter, List, long, TimeUnit)}): {@link #writeEvent(String, IssuedEvent, int)} в нем
+ * рассчитан на конкурентные вызовы, иначе объединять было бы нечего.
  *
  * @see IJournalService
  * @see NativeStorageReader
@@ -25,6 +28,10 @@ public class DefaultJournalService implements IJournalService
 {
     private final IStorageWriter writer;
     private final IStorageReader reader;
+    /**
+     * Групповая запись одиночных событий, {@code null} - каждое событие записывается отдельно.
+     */
+    private final EventsGroupCommitter groupCommitter;
 
     /**
      * Создает сервис в смешанном варианте.
@@ -38,10 +45,37 @@ public class DefaultJournalService implements IJournalService
                 new MongoDatabaseCollections(servers), false)));
     }
 
+    /**
+     * Создает сервис в смешанном варианте с групповой записью одиночных событий. Конкурентные вызовы
+     * {@link #writeEvent(String, IssuedEvent, int)} с одинаковыми именем кластера и идентификатором в пределах окна
+     * записываются одним {@link ClusterEvents}, каждый вызов возвращается после записи своей группы.
+     * 
+     * @param kafkaWriter писатель во временное хранилище Kafka
+     * @param servers список серверов БД журнала регистрации
+     * @param groupCommitWindow окно группировки
+     * @param unit единица измерения окна
+     * @return сервис
+     */
+    public static IJournalService createMixed(IKafkaWriter kafkaWriter, List<InetSocketAddress> servers,
+            long groupCommitWindow, TimeUnit unit)
+    {
+        return new DefaultJournalService(new KafkaStorageWriter(kafkaWriter), new NativeStorageReader(new MongoStorage(
+                new MongoDatabaseCollections(servers), false)), groupCommitWindow, unit);
+    }
+
     private DefaultJournalService(IStorageWriter writer, IStorageReader reader)
     {
         this.writer = writer;
         this.reader = reader;
+        this.groupCommitter = null;
+    }
+
+    private DefaultJournalService(IStorageWriter writer, IStorageReader reader, long groupCommitWindow,
+            TimeUnit unit)
+    {
+        this.writer = writer;
+        this.reader = reader;
+        this.groupCommitter = new EventsGroupCommitter(this::writeClusterEvents, groupCommitWindow, unit);
     }
 
     @Override
@@ -102,6 +136,11 @@ public class DefaultJournalService implements IJournalService
     public void writeEvent(String clusterName, IssuedEvent event, int id) throws JournalException
     {
         checkArgument(event != null);
+        if (groupCommitter != null)
+        {
+            groupCommitter.write(clusterName, event, id);
+            return;
+        }
         List<IssuedEvent> list = new ArrayList<>();
         list.add(event);
         ClusterEvents events = new ClusterEvents(clusterName, list);
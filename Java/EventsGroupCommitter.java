@@ -0,0 +1,251 @@
+---
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+---
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Групповая запись одиночных событий. Конкурентные вызовы {@link #write(String, IssuedEvent, int)} с одинаковыми
+ * именем кластера и идентификатором распределения нагрузки в пределах короткого окна объединяются в один
+ * {@link ClusterEvents}. Первый вызов группы (лидер) выжидает окно и записывает группу, остальные ждут результата.
+ * Каждый вызов возвращается только после записи своей группы и получает ее ошибку, если она была.
+ * <p>
+ * Группы одного ключа записываются строго по очереди, поэтому порядок событий не нарушается.
+ * <p>
+ * <b>Synchronization</b>
+ * <p>
+ * Экземпляр данного класса является потокобезопасным.
+ */
+final class EventsGroupCommitter
+{
+    private final IGroupWriter writer;
+    private final long windowNanos;
+    private final ConcurrentMap<GroupKey, Group> groups = new ConcurrentHashMap<>();
+
+    /**
+     * Конструктор.
+     *
+     * @param writer запись сформированной группы
+     * @param window окно группировки
+     * @param unit единица измерения окна
+     */
+    EventsGroupCommitter(IGroupWriter writer, long window, TimeUnit unit)
+    {
+        checkArgument(writer != null);
+        checkArgument(window > 0);
+        checkArgument(unit != null);
+        this.writer = writer;
+        this.windowNanos = unit.toNanos(window);
+    }
+
+    /**
+     * Записывает событие в составе группы.
+     *
+     * @param clusterName имя кластера
+     * @param event событие
+     * @param id условный идентификатор для распределения нагрузки
+     * @throws JournalException при ошибке записи группы
+     */
+    void write(String clusterName, IssuedEvent event, int id) throws JournalException
+    {
+        GroupKey key = new GroupKey(clusterName, id);
+        while (true)
+        {
+            Group group = groups.compute(key, (k, current) -> current == null || current.isSealed()
+                    ? new Group(current) : current);
+            Boolean leader = group.add(event);
+            // Лидер успел закрыть группу - нужна следующая.
+            if (leader == null)
+                continue;
+            if (leader)
+                lead(key, clusterName, id, group);
+            else
+                group.await();
+            return;
+        }
+    }
+
+    private void lead(GroupKey key, String clusterName, int id, Group group) throws JournalException
+    {
+        long deadline = System.nanoTime() + windowNanos;
+        // При прерывании группа записывается сразу, без ожидания окна.
+        for (long left = windowNanos; left > 0 && !Thread.currentThread().isInterrupted();
+                left = deadline - System.nanoTime())
+            LockSupport.parkNanos(left);
+        List<IssuedEvent> events = group.seal();
+        group.awaitPrevious();
+        try
+        {
+            writer.write(new ClusterEvents(clusterName, events), id);
+            group.complete(null);
+        }
+        catch (JournalException e)
+        {
+            group.complete(e);
+            throw e;
+        }
+        catch (RuntimeException e)
+        {
+            group.complete(e);
+            throw e;
+        }
+        finally
+        {
+            groups.remove(key, group);
+        }
+    }
+
+    /**
+     * Запись сформированной группы событий.
+     */
+    @FunctionalInterface
+    interface IGroupWriter
+    {
+        /**
+         * Записывает события.
+         *
+         * @param events события
+         * @param id условный идентификатор для распределения нагрузки
+         * @throws JournalException при ошибке записи
+         */
+        void write(ClusterEvents events, int id) throws JournalException;
+    }
+
+    private static final class GroupKey
+    {
+        private final String clusterName;
+        private final int id;
+
+        private GroupKey(String clusterName, int id)
+        {
+            this.clusterName = clusterName;
+            this.id = id;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            final int prime = 31;
+            int result = 1;
+            result = prime * result + (clusterName == null ? 0 : clusterName.hashCode());
+            result = prime * result + id;
+            return result;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (this == obj)
+                return true;
+            if (obj == null)
+                return false;
+            if (getClass() != obj.getClass())
+                return false;
+            GroupKey other = (GroupKey)obj;
+            if (id != other.id)
+                return false;
+            return clusterName == null ? other.clusterName == null : clusterName.equals(other.clusterName);
+        }
+    }
+
+    private static final class Group
+    {
+        private final List<IssuedEvent> events = new ArrayList<>();
+        private Group previous;
+        private boolean sealed;
+        private boolean done;
+        private Exception error;
+
+        private Group(Group previous)
+        {
+            this.previous = previous;
+        }
+
+        private synchronized boolean isSealed()
+        {
+            return sealed;
+        }
+
+        /**
+         * @return {@code true} - вызывающий стал лидером, {@code false} - участником, {@code null} - группа закрыта
+         */
+        private synchronized Boolean add(IssuedEvent event)
+        {
+            if (sealed)
+                return null;
+            events.add(event);
+            return events.size() == 1;
+        }
+
+        private synchronized List<IssuedEvent> seal()
+        {
+            sealed = true;
+            return events;
+        }
+
+        private void awaitPrevious()
+        {
+            Group group;
+            synchronized (this)
+            {
+                group = previous;
+                previous = null;
+            }
+            if (group != null)
+                group.awaitDone();
+        }
+
+        private synchronized void complete(Exception error)
+        {
+            this.error = error;
+            done = true;
+            notifyAll();
+        }
+
+        private synchronized void awaitDone()
+        {
+            boolean interrupted = false;
+            while (!done)
+            {
+                try
+                {
+                    wait();
+                }
+                catch (InterruptedException e)
+                {
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+
+        private void await() throws JournalException
+        {
+            // Ждем без прерывания: событие уже в группе и будет записано лидером.
+            awaitDone();
+            Exception e;
+            synchronized (this)
+            {
+                e = error;
+            }
+            if (e != null)
+                throw new JournalException(Messages.group_write_exception(), e);
+        }
+    }
+
+    @Localizable
+    interface IMessagesList
+    {
+        IMessagesList Messages = LocalizableFactory.create(IMessagesList.class);
+
+        @DefaultString("Cannot put events of the group.")
+        @Context("Ошибка записи группы событий, в которую попало событие.")
+        @Tags({"logs"})
+        String group_write_exception();
+    }
+}
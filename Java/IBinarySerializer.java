@@ -0,0 +1,24 @@
+---
+---
+
+/**
+ * Сериализатор событий в бинарное сообщение временного хранилища.
+ * <p>
+ * <b>Synchronization</b>
+ * <p>
+ * Реализации данного интерфейса должны быть потокобезопасными.
+ *
+ * @see ClusterEventsBinaryCodec
+ */
+@FunctionalInterface
+public interface IBinarySerializer
+{
+    /**
+     * Сериализует события.
+     *
+     * @param events события
+     * @return содержимое сообщения
+     * @throws SerializeException при ошибке сериализации
+     */
+    byte[] serialize(ClusterEvents events) throws SerializeException;
+}
@@ -0,0 +1,31 @@
+---
+import java.io.IOException;
+---
+
+/**
+ * <code>ICompressionDictionaryStore</code> интерфейс общего хранилища словарей сжатия. Через него словари,
+ * обученные писателем, становятся доступны читателям в других процессах.
+ * <p>
+ * Словарь неизменяем и однозначно определяется идентификатором, поэтому повторное сохранение того же словаря
+ * допустимо.
+ */
+public interface ICompressionDictionaryStore
+{
+    /**
+     * Сохраняет словарь.
+     *
+     * @param id идентификатор словаря
+     * @param data содержимое словаря
+     * @throws IOException при ошибке хранилища
+     */
+    public void save(int id, byte[] data) throws IOException;
+
+    /**
+     * Загружает словарь.
+     *
+     * @param id идентификатор словаря
+     * @return содержимое словаря или {@code null}, если словарь не сохранялся
+     * @throws IOException при ошибке хранилища
+     */
+    public byte[] load(int id) throws IOException;
+}
@@ -0,0 +1,29 @@
+---
+import java.util.Map;
+---
+
+/**
+ * Показатели чтения разделов временного хранилища: позиция, конец журнала раздела, отставание и скорость чтения.
+ * Публикуется вместе с {@link IKafkaReader} для ребалансировки и оповещений.
+ * <p>
+ * Вариант использования:
+ *
+ * <pre>
+ * for (ShardReadMetrics metrics : readerMetrics.getShardMetrics().values())
+ *     if (metrics.getLag() &gt; threshold)
+ *         alert(metrics.getShard());
+ * </pre>
+ * <p>
+ * <b>Synchronization</b>
+ * <p>
+ * Реализации данного интерфейса должны быть потокобезопасными.
+ */
+public interface IKafkaReaderMetrics
+{
+    /**
+     * Снимает показатели всех читаемых разделов. Скорости считаются по изменению с предыдущего снятия.
+     *
+     * @return показатели по разделам
+     */
+    Map<Shard, ShardReadMetrics> getShardMetrics();
+}
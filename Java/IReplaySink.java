@@ -0,0 +1,26 @@
+---
+import java.util.Deque;
+---
+
+/**
+ * Приемник событий, прочитанных при повторной загрузке диапазона смещений раздела.
+ * <p>
+ * <b>Synchronization</b>
+ * <p>
+ * Реализации данного интерфейса должны быть потокобезопасными.
+ *
+ * @see KafkaReader#replay(java.util.List, Shard, long, long, ShardDecodePipeline.IDecoder, IReplaySink)
+ */
+@FunctionalInterface
+public interface IReplaySink
+{
+    /**
+     * Загружает пачку событий в хранилище.
+     *
+     * @param events события, более новые - в начале, как в буфере читателя
+     * @param metaInfo метаинформация с позицией, следующей за последним событием пачки. Это позиция повторной
+     *        загрузки, а не обычного чтения раздела, ее нельзя сохранять как позицию восстановления.
+     * @throws LoadException при ошибке загрузки
+     */
+    void accept(Deque<ClusterEvents> events, MetaClusterEvent metaInfo) throws LoadException;
+}
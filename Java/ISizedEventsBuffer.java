@@ -0,0 +1,20 @@
+---
+---
+
+/**
+ * <code>ISizedEventsBuffer</code> буфер событий, учитывающий объем пачек. Обработчик, у которого есть исходное
+ * сообщение временного хранилища, сообщает его размер, и буферу не нужно оценивать объем разобранных событий.
+ *
+ * @see KafkaReaderBufferControllerImpl
+ */
+public interface ISizedEventsBuffer
+{
+    /**
+     * Добавляет пачку событий в буфер.
+     *
+     * @param events события
+     * @param bytes размер сообщения временного хранилища, из которого разобрана пачка, в байтах
+     * @return {@code true}, если пачка принята, {@code false} - буфер переполнен
+     */
+    public boolean addEvents(ClusterEvents events, int bytes);
+}
@@ -0,0 +1,145 @@
+---
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+---
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Бюджет байтов "в полете" (отправленных, но не подтвержденных) для каждого раздела временного хранилища. Позволяет
+ * {@link KafkaWriter} явно отказывать в записи при перегрузке раздела вместо блокировки внутри продюсера.
+ * <p>
+ * Сообщение больше бюджета принимается, только если у раздела нет сообщений в полете, иначе оно никогда не было бы
+ * отправлено. Для подсказки "повторить через" ведется сглаженная скорость подтверждения байтов раздела.
+ * <p>
+ * <b>Synchronization</b>
+ * <p>
+ * Экземпляр данного класса является потокобезопасным.
+ */
+public class InFlightBudget
+{
+    /**
+     * Вес нового измерения в сглаженной скорости подтверждения.
+     */
+    private static final double RATE_ALPHA = 0.2;
+    private static final long MIN_RETRY_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long MAX_RETRY_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private final long maxBytesPerShard;
+    private final ConcurrentMap<Shard, ShardBudget> budgets = new ConcurrentHashMap<>();
+
+    /**
+     * Конструктор.
+     *
+     * @param maxBytesPerShard максимальное количество байтов в полете для одного раздела
+     */
+    public InFlightBudget(long maxBytesPerShard)
+    {
+        checkArgument(maxBytesPerShard > 0);
+        this.maxBytesPerShard = maxBytesPerShard;
+    }
+
+    /**
+     * Пытается занять бюджет раздела без ожидания.
+     *
+     * @param shard раздел
+     * @param bytes размер сообщения
+     * @return {@code true}, если бюджет занят
+     */
+    public boolean tryAcquire(Shard shard, int bytes)
+    {
+        return budget(shard).tryAcquire(bytes);
+    }
+
+    /**
+     * Занимает бюджет раздела, ожидая его освобождения не дольше заданного срока.
+     *
+     * @param shard раздел
+     * @param bytes размер сообщения
+     * @param deadlineNanos срок, {@link System#nanoTime()}
+     * @return {@code true}, если бюджет занят до истечения срока
+     * @throws InterruptedException если поток прерван во время ожидания
+     */
+    public boolean acquire(Shard shard, int bytes, long deadlineNanos) throws InterruptedException
+    {
+        return budget(shard).acquire(bytes, deadlineNanos);
+    }
+
+    /**
+     * Освобождает бюджет раздела после подтверждения или ошибки отправки.
+     *
+     * @param shard раздел
+     * @param bytes размер сообщения
+     */
+    public void release(Shard shard, int bytes)
+    {
+        budget(shard).release(bytes);
+    }
+
+    /**
+     * Оценивает, через сколько имеет смысл повторить запись сообщения в раздел.
+     *
+     * @param shard раздел
+     * @param bytes размер сообщения
+     * @return время в наносекундах
+     */
+    public long retryAfterNanos(Shard shard, int bytes)
+    {
+        return budget(shard).retryAfterNanos(bytes);
+    }
+
+    private ShardBudget budget(Shard shard)
+    {
+        return budgets.computeIfAbsent(shard, v -> new ShardBudget());
+    }
+
+    private final class ShardBudget
+    {
+        private long inFlight;
+        /**
+         * Сглаженная скорость подтверждения, байт в наносекунду. 0 - еще неизвестна.
+         */
+        private double releaseRate;
+        private long lastReleaseNanos = System.nanoTime();
+
+        private synchronized boolean tryAcquire(int bytes)
+        {
+            if (inFlight > 0 && inFlight + bytes > maxBytesPerShard)
+                return false;
+            inFlight += bytes;
+            return true;
+        }
+
+        private synchronized boolean acquire(int bytes, long deadlineNanos) throws InterruptedException
+        {
+            while (!tryAcquire(bytes))
+            {
+                long waitNanos = deadlineNanos - System.nanoTime();
+                if (waitNanos <= 0)
+                    return false;
+                TimeUnit.NANOSECONDS.timedWait(this, waitNanos);
+            }
+            return true;
+        }
+
+        private synchronized void release(int bytes)
+        {
+            inFlight = Math.max(0, inFlight - bytes);
+            long now = System.nanoTime();
+            long elapsed = Math.max(1, now - lastReleaseNanos);
+            lastReleaseNanos = now;
+            double rate = (double)bytes / elapsed;
+            releaseRate = releaseRate == 0 ? rate : releaseRate + RATE_ALPHA * (rate - releaseRate);
+            notifyAll();
+        }
+
+        private synchronized long retryAfterNanos(int bytes)
+        {
+            long excess = inFlight + bytes - maxBytesPerShard;
+            if (excess <= 0)
+                return 0;
+            if (releaseRate == 0)
+                return MAX_RETRY_NANOS;
+            return Math.min(MAX_RETRY_NANOS, Math.max(MIN_RETRY_NANOS, (long)(excess / releaseRate)));
+        }
+    }
+}
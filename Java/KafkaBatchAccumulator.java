@@ -0,0 +1,264 @@
+---
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import kafka.producer.KeyedMessage;
+---
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Накопитель пакетов сообщений для {@link KafkaWriter}. Для каждого раздела временного хранилища ведется текущий
+ * пакет и очередь готовых к отправке пакетов. Пакет считается готовым, если достигнут порог по размеру, количеству
+ * событий или истекло время ожидания (см. {@link KafkaBatchConfig}).
+ * <p>
+ * Порядок отправки пакетов одного раздела сохраняется: готовые пакеты забираются из очереди только под
+ * {@link ShardBatches#sendLock()}. Чтобы медленный раздел не занимал несколько потоков отправки, отправку
+ * раздела планирует только один поток за раз ({@link ShardBatches#trySchedule()}).
+ * <p>
+ * <b>Synchronization</b>
+ * <p>
+ * Экземпляр данного класса является потокобезопасным.
+ */
+final class KafkaBatchAccumulator
+{
+    private final KafkaBatchConfig config;
+    private final ConcurrentMap<Shard, ShardBatches> shards = new ConcurrentHashMap<>();
+
+    /**
+     * Конструктор.
+     *
+     * @param config настройки пакетной отправки
+     */
+    KafkaBatchAccumulator(KafkaBatchConfig config)
+    {
+        checkArgument(config != null);
+        this.config = config;
+    }
+
+    /**
+     * Добавляет сообщение в текущий пакет раздела.
+     *
+     * @param shard раздел временного хранилища
+     * @param id условный идентификатор для распределения нагрузки
+     * @param message сообщение
+     * @param bytes размер сообщения в байтах
+     * @param events количество событий в сообщении
+     * @param future завершается после подтверждения отправки пакета
+     * @return пакеты раздела, если есть готовые к отправке, иначе {@code null}
+     */
+    ShardBatches append(Shard shard, int id, KeyedMessage<String, byte[]> message, int bytes, int events,
+            CompletableFuture<Boolean> future)
+    {
+        ShardBatches batches = shards.computeIfAbsent(shard, ShardBatches::new);
+        return batches.append(id, message, bytes, events, future, config) ? batches : null;
+    }
+
+    /**
+     * Закрывает пакеты, время ожидания которых истекло.
+     *
+     * @param nowNanos текущее время, {@link System#nanoTime()}
+     * @return пакеты разделов, в которых есть готовые к отправке
+     */
+    List<ShardBatches> expire(long nowNanos)
+    {
+        List<ShardBatches> result = new ArrayList<>();
+        for (ShardBatches batches : shards.values())
+        {
+            if (batches.expire(nowNanos, config.getLingerNanos()))
+                result.add(batches);
+        }
+        return result;
+    }
+
+    /**
+     * Закрывает все текущие пакеты независимо от порогов.
+     *
+     * @return пакеты разделов, в которых есть готовые к отправке
+     */
+    List<ShardBatches> sealAll()
+    {
+        List<ShardBatches> result = new ArrayList<>();
+        for (ShardBatches batches : shards.values())
+        {
+            if (batches.expire(Long.MAX_VALUE, 0))
+                result.add(batches);
+        }
+        return result;
+    }
+
+    /**
+     * Пакеты одного раздела временного хранилища.
+     */
+    static final class ShardBatches
+    {
+        private final Shard shard;
+        private final Object sendLock = new Object();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private final Deque<Batch> ready = new ArrayDeque<>();
+        private Batch current;
+
+        private ShardBatches(Shard shard)
+        {
+            this.shard = shard;
+        }
+
+        /**
+         * Возвращает раздел временного хранилища.
+         *
+         * @return раздел
+         */
+        Shard getShard()
+        {
+            return shard;
+        }
+
+        /**
+         * Возвращает монитор, под которым следует отправлять готовые пакеты раздела.
+         *
+         * @return монитор
+         */
+        Object sendLock()
+        {
+            return sendLock;
+        }
+
+        /**
+         * Отмечает, что отправка готовых пакетов раздела запланирована.
+         *
+         * @return {@code true}, если отправка еще не была запланирована, и планировать ее должен вызывающий
+         */
+        boolean trySchedule()
+        {
+            return scheduled.compareAndSet(false, true);
+        }
+
+        /**
+         * Снимает отметку о запланированной отправке. После снятия следует проверить {@link #hasReady()}: пакет
+         * мог стать готовым, пока отметка еще стояла.
+         */
+        void unschedule()
+        {
+            scheduled.set(false);
+        }
+
+        /**
+         * Проверяет, есть ли готовые к отправке пакеты.
+         *
+         * @return {@code true}, если есть
+         */
+        synchronized boolean hasReady()
+        {
+            return !ready.isEmpty();
+        }
+
+        /**
+         * Забирает следующий готовый пакет.
+         *
+         * @return пакет или {@code null}, если готовых пакетов нет
+         */
+        synchronized Batch pollReady()
+        {
+            return ready.poll();
+        }
+
+        private synchronized boolean append(int id, KeyedMessage<String, byte[]> message, int bytes, int events,
+                CompletableFuture<Boolean> future, KafkaBatchConfig config)
+        {
+            // Слишком большое сообщение не должно "раздувать" уже набранный пакет.
+            if (current != null && current.bytes + bytes > config.getMaxBatchBytes())
+                seal();
+            if (current == null)
+                current = new Batch(System.nanoTime());
+            current.add(id, message, bytes, events, future);
+            if (current.bytes >= config.getMaxBatchBytes() || current.events >= config.getMaxBatchEvents())
+                seal();
+            return !ready.isEmpty();
+        }
+
+        private synchronized boolean expire(long nowNanos, long lingerNanos)
+        {
+            if (current != null && nowNanos - current.createdNanos >= lingerNanos)
+                seal();
+            return !ready.isEmpty();
+        }
+
+        private void seal()
+        {
+            ready.add(current);
+            current = null;
+        }
+    }
+
+    /**
+     * Пакет сообщений для одного раздела временного хранилища.
+     */
+    static final class Batch
+    {
+        private final long createdNanos;
+        private final List<Integer> ids = new ArrayList<>();
+        private final List<KeyedMessage<String, byte[]>> messages = new ArrayList<>();
+        private final List<CompletableFuture<Boolean>> futures = new ArrayList<>();
+        private int bytes;
+        private int events;
+
+        private Batch(long createdNanos)
+        {
+            this.createdNanos = createdNanos;
+        }
+
+        /**
+         * Возвращает сообщения пакета.
+         *
+         * @return сообщения
+         */
+        List<KeyedMessage<String, byte[]>> getMessages()
+        {
+            return messages;
+        }
+
+        /**
+         * Возвращает идентификаторы распределения нагрузки сообщений пакета, в том же порядке, что и сообщения.
+         *
+         * @return идентификаторы
+         */
+        List<Integer> getIds()
+        {
+            return ids;
+        }
+
+        /**
+         * Сообщает ожидающим об успешной отправке пакета.
+         */
+        void complete()
+        {
+            for (CompletableFuture<Boolean> future : futures)
+                future.complete(true);
+        }
+
+        /**
+         * Сообщает ожидающим об ошибке отправки пакета.
+         *
+         * @param e причина
+         */
+        void fail(Throwable e)
+        {
+            for (CompletableFuture<Boolean> future : futures)
+                future.completeExceptionally(e);
+        }
+
+        private void add(int id, KeyedMessage<String, byte[]> message, int bytes, int events,
+                CompletableFuture<Boolean> future)
+        {
+            ids.add(id);
+            messages.add(message);
+            futures.add(future);
+            this.bytes += bytes;
+            this.events += events;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+---
+import java.util.concurrent.TimeUnit;
+---
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Настройки пакетной отправки событий в Kafka для {@link KafkaWriter}. Пакет раздела отправляется, как только
+ * достигнут один из порогов: размер в байтах, количество событий или время ожидания(linger).
+ * <p>
+ * Вариант использования:
+ *
+ * <pre>
+ * KafkaBatchConfig batchConfig = new KafkaBatchConfig(256 * 1024, 5000, 5, TimeUnit.MILLISECONDS);
+ * KafkaWriter kafkaWriter = new KafkaWriter(topic, writers, serializer, batchConfig);
+ * </pre>
+ * <p>
+ * <b>Synchronization</b>
+ * <p>
+ * Экземпляр данного класса является неизменяемым.
+ */
+public final class KafkaBatchConfig
+{
+    private final int maxBatchBytes;
+    private final int maxBatchEvents;
+    private final long lingerNanos;
+
+    /**
+     * Конструктор.
+     *
+     * @param maxBatchBytes максимальный размер пакета в байтах
+     * @param maxBatchEvents максимальное количество событий в пакете
+     * @param linger максимальное время ожидания пакета
+     * @param unit единица измерения времени ожидания
+     */
+    public KafkaBatchConfig(int maxBatchBytes, int maxBatchEvents, long linger, TimeUnit unit)
+    {
+        checkArgument(maxBatchBytes > 0);
+        checkArgument(maxBatchEvents > 0);
+        checkArgument(linger > 0);
+        checkArgument(unit != null);
+        this.maxBatchBytes = maxBatchBytes;
+        this.maxBatchEvents = maxBatchEvents;
+        this.lingerNanos = unit.toNanos(linger);
+    }
+
+    /**
+     * Возвращает максимальный размер пакета в байтах.
+     *
+     * @return размер
+     */
+    public int getMaxBatchBytes()
+    {
+        return maxBatchBytes;
+    }
+
+    /**
+     * Возвращает максимальное количество событий в пакете.
+     *
+     * @return количество событий
+     */
+    public int getMaxBatchEvents()
+    {
+        return maxBatchEvents;
+    }
+
+    /**
+     * Возвращает максимальное время ожидания пакета.
+     *
+     * @return время в наносекундах
+     */
+    public long getLingerNanos()
+    {
+        return lingerNanos;
+    }
+}
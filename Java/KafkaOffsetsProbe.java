@@ -0,0 +1,72 @@
+---
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.List;
+import kafka.cluster.Broker;
+import kafka.javaapi.PartitionMetadata;
+import kafka.javaapi.TopicMetadata;
+import kafka.javaapi.TopicMetadataRequest;
+import kafka.javaapi.consumer.SimpleConsumer;
+---
+
+/**
+ * Поиск брокера-лидера раздела по метаданным топика.
+ * <p>
+ * <b>Synchronization</b>
+ * <p>
+ * Экземпляр данного класса является потокобезопасным.
+ */
+final class KafkaOffsetsProbe
+{
+    private static final int SO_TIMEOUT = 10000;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final String CLIENT_ID = "KafkaLeaderLookup";
+    private final String topicName;
+
+    /**
+     * Конструктор.
+     *
+     * @param topicName имя топика
+     */
+    KafkaOffsetsProbe(String topicName)
+    {
+        this.topicName = topicName;
+    }
+
+    /**
+     * Находит брокера-лидера раздела по метаданным топика.
+     *
+     * @param brokers брокеры для запроса метаданных
+     * @param partition номер раздела
+     * @return лидер или {@code null}, если ни один брокер не ответил или лидер не выбран
+     */
+    Broker findLeader(List<InetSocketAddress> brokers, int partition)
+    {
+        for (InetSocketAddress broker : brokers)
+        {
+            SimpleConsumer consumer = new SimpleConsumer(broker.getHostString(), broker.getPort(), SO_TIMEOUT,
+                    BUFFER_SIZE, CLIENT_ID);
+            try
+            {
+                for (TopicMetadata topic : consumer.send(new TopicMetadataRequest(Collections.singletonList(
+                        topicName))).topicsMetadata())
+                {
+                    for (PartitionMetadata metadata : topic.partitionsMetadata())
+                    {
+                        if (metadata.partitionId() == partition)
+                            return metadata.leader();
+                    }
+                }
+            }
+            catch (RuntimeException e)
+            {
+                // Пробуем следующий брокер.
+            }
+            finally
+            {
+                consumer.close();
+            }
+        }
+        return null;
+    }
+}
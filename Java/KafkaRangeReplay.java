@@ -0,0 +1,310 @@
+---
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import kafka.api.FetchRequest;
+import kafka.api.FetchRequestBuilder;
+import kafka.cluster.Broker;
+import kafka.common.ErrorMapping;
+import kafka.common.KafkaException;
+import kafka.javaapi.FetchResponse;
+import kafka.javaapi.consumer.SimpleConsumer;
+import kafka.message.MessageAndOffset;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+---
+
+/**
+ * Повторная загрузка диапазона смещений раздела [from, to) напрямую в хранилище. Раздел читается без пауз
+ * собственным потребителем, события передаются в {@link IReplaySink} крупными пачками. Офсеты группы потребителей
+ * не затрагиваются, поэтому обычное чтение раздела продолжается независимо.
+ * <p>
+ * Поток загрузки только читает раздел: сообщения разбираются в общем пуле через {@link ShardDecodePipeline}, и перед
+ * передачей пачки поток дожидается доставки в нее всех прочитанных сообщений.
+ * <p>
+ * Загрузка завершается успешно, только если дочитан весь диапазон. Остановка раньше - прерывание потока, отмена
+ * future или исчерпание повторов - завершает future исключением.
+ * <p>
+ * <b>Synchronization</b>
+ * <p>
+ * Экземпляр данного класса предназначен для выполнения одним потоком.
+ */
+final class KafkaRangeReplay implements Runnable
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(KafkaRangeReplay.class);
+    private static final String CLIENT_ID = "KafkaReplay";
+    private static final int SO_TIMEOUT = 30000;
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    private static final int FETCH_SIZE = 4 * 1024 * 1024;
+    private static final int MAX_FETCH_SIZE = 64 * 1024 * 1024;
+    /**
+     * Количество сообщений в пачке загрузки.
+     */
+    private static final int BATCH_MESSAGES = 10000;
+    private static final long REPORT_PERIOD_NANOS = TimeUnit.SECONDS.toNanos(10);
+    /**
+     * Начальная пауза перед повтором выборки после ошибки, мс. Удваивается при каждой следующей ошибке подряд.
+     */
+    private static final long RETRY_BACKOFF = 100;
+    private static final long MAX_RETRY_BACKOFF = 5000;
+    /**
+     * Максимальное количество ошибок выборки подряд, после которого загрузка прерывается.
+     */
+    private static final int MAX_RETRIES = 10;
+    /**
+     * Максимальное количество сообщений в разборе.
+     */
+    private static final int MAX_IN_FLIGHT = 1024;
+    private final KafkaOffsetsProbe offsetsProbe;
+    private final String topicName;
+    private final List<InetSocketAddress> brokers;
+    private final Shard shard;
+    private final long toOffset;
+    private final ForkJoinPool decodePool;
+    private final ShardDecodePipeline.IDecoder decoder;
+    private final IReplaySink sink;
+    private final ReplayProgress progress;
+    /**
+     * Текущая пачка загрузки. Пополняется конвейером разбора под его монитором, поэтому поток загрузки берет пачку
+     * под монитором пачки и только после {@link ShardDecodePipeline#awaitDelivered(long, TimeUnit)}.
+     */
+    private final Deque<ClusterEvents> batch = new ArrayDeque<>();
+
+    KafkaRangeReplay(String topicName, List<InetSocketAddress> brokers, Shard shard, long fromOffset, long toOffset,
+            ForkJoinPool decodePool, ShardDecodePipeline.IDecoder decoder, IReplaySink sink)
+    {
+        this.offsetsProbe = new KafkaOffsetsProbe(topicName);
+        this.topicName = topicName;
+        this.brokers = brokers;
+        this.shard = shard;
+        this.toOffset = toOffset;
+        this.decodePool = decodePool;
+        this.decoder = decoder;
+        this.sink = sink;
+        this.progress = new ReplayProgress(shard, fromOffset, toOffset);
+    }
+
+    ReplayProgress getProgress()
+    {
+        return progress;
+    }
+
+    @Override
+    public void run()
+    {
+        try
+        {
+            replay();
+            progress.getCompletion().complete(null);
+            LOGGER.info(Messages.replay_finished(progress.toString()));
+        }
+        catch (InterruptedException | CancellationException e)
+        {
+            if (e instanceof InterruptedException)
+                Thread.currentThread().interrupt();
+            progress.getCompletion().completeExceptionally(e);
+            LOGGER.info(Messages.replay_stopped(progress.toString()));
+        }
+        catch (Exception e)
+        {
+            progress.getCompletion().completeExceptionally(e);
+            LOGGER.warn(Messages.replay_failed(progress.toString(), e.getMessage()));
+            LOGGER.trace("Replay exception.", e);
+        }
+    }
+
+    private void replay() throws KafkaException, SerializeException, LoadException, InterruptedException
+    {
+        int partition = shard.getShardNumber();
+        long offset = progress.getPosition();
+        int fetchSize = FETCH_SIZE;
+        long lastReport = System.nanoTime();
+        ShardDecodePipeline pipeline = new ShardDecodePipeline(decodePool, decoder, this::offer, MAX_IN_FLIGHT);
+        int batchMessages = 0;
+        long batchBytes = 0;
+        Broker leader = null;
+        SimpleConsumer consumer = null;
+        int retries = 0;
+        try
+        {
+            while (offset < toOffset)
+            {
+                checkStopped();
+                if (consumer == null)
+                {
+                    leader = offsetsProbe.findLeader(brokers, partition);
+                    if (leader == null)
+                    {
+                        // Во время выбора лидера раздел временно без лидера.
+                        backoff(++retries, Messages.leader_not_found(partition));
+                        continue;
+                    }
+                    consumer = new SimpleConsumer(leader.host(), leader.port(), SO_TIMEOUT, BUFFER_SIZE, CLIENT_ID);
+                }
+                FetchRequest request = new FetchRequestBuilder().clientId(CLIENT_ID).addFetch(topicName, partition,
+                        offset, fetchSize).build();
+                FetchResponse response = consumer.fetch(request);
+                if (response.hasError())
+                {
+                    short code = response.errorCode(topicName, partition);
+                    if (code == ErrorMapping.OffsetOutOfRangeCode())
+                        throw new KafkaException(Messages.offset_out_of_range(offset));
+                    // Лидер мог смениться - ищем заново, но не сразу, чтобы не нагружать брокеры во время выбора.
+                    consumer.close();
+                    consumer = null;
+                    backoff(++retries, Messages.fetch_failed(partition, code));
+                    continue;
+                }
+                retries = 0;
+                boolean fetched = false;
+                for (MessageAndOffset message : response.messageSet(topicName, partition))
+                {
+                    // Сжатый набор может начинаться раньше запрошенного смещения.
+                    if (message.offset() < offset)
+                        continue;
+                    if (message.offset() >= toOffset)
+                        break;
+                    fetched = true;
+                    ByteBuffer payload = message.message().payload();
+                    byte[] data = new byte[payload.remaining()];
+                    payload.get(data);
+                    pipeline.submit(message.offset(), data);
+                    ++batchMessages;
+                    batchBytes += data.length;
+                    offset = message.nextOffset();
+                    if (batchMessages >= BATCH_MESSAGES)
+                    {
+                        flush(pipeline, leader, offset, batchMessages, batchBytes);
+                        batchMessages = 0;
+                        batchBytes = 0;
+                    }
+                }
+                if (!fetched)
+                {
+                    // Сообщение не поместилось в выборку или диапазон выходит за конец журнала.
+                    if (fetchSize >= MAX_FETCH_SIZE)
+                        throw new KafkaException(Messages.offset_out_of_range(offset));
+                    fetchSize = Math.min(MAX_FETCH_SIZE, fetchSize * 2);
+                }
+                long now = System.nanoTime();
+                if (now - lastReport >= REPORT_PERIOD_NANOS)
+                {
+                    lastReport = now;
+                    LOGGER.info(Messages.replay_progress(progress.toString()));
+                }
+            }
+            if (batchMessages > 0)
+                flush(pipeline, leader, offset, batchMessages, batchBytes);
+        }
+        finally
+        {
+            if (consumer != null)
+                consumer.close();
+        }
+    }
+
+    /**
+     * Проверяет, не остановлена ли загрузка.
+     *
+     * @throws InterruptedException если поток прерван
+     * @throws CancellationException если future загрузки отменен
+     */
+    private void checkStopped() throws InterruptedException
+    {
+        if (Thread.interrupted())
+            throw new InterruptedException();
+        if (progress.getCompletion().isDone())
+            throw new CancellationException();
+    }
+
+    /**
+     * Выдерживает паузу перед повтором выборки.
+     *
+     * @param retries номер повтора
+     * @param reason описание ошибки
+     * @throws KafkaException если количество повторов исчерпано
+     * @throws InterruptedException если поток прерван
+     */
+    private void backoff(int retries, String reason) throws KafkaException, InterruptedException
+    {
+        if (retries > MAX_RETRIES)
+            throw new KafkaException(reason);
+        Thread.sleep(Math.min(MAX_RETRY_BACKOFF, RETRY_BACKOFF << (retries - 1)));
+    }
+
+    /**
+     * Принимает разобранные события в текущую пачку. Вызывается конвейером разбора.
+     */
+    private boolean offer(ClusterEvents events, int bytes)
+    {
+        synchronized (batch)
+        {
+            batch.push(events);
+        }
+        return true;
+    }
+
+    /**
+     * Дожидается разбора всех прочитанных сообщений и передает пачку в приемник.
+     */
+    private void flush(ShardDecodePipeline pipeline, Broker leader, long nextOffset, int batchMessages,
+            long batchBytes) throws LoadException, SerializeException, InterruptedException
+    {
+        while (!pipeline.awaitDelivered(REPORT_PERIOD_NANOS, TimeUnit.NANOSECONDS))
+            checkStopped();
+        synchronized (batch)
+        {
+            if (!batch.isEmpty())
+                sink.accept(batch, MetaClusterEvent.instanceOf(leader.host(), leader.port(), shard.getShardNumber(),
+                        nextOffset));
+            batch.clear();
+        }
+        progress.advance(nextOffset, batchMessages, batchBytes);
+    }
+
+    @Localizable
+    interface IMessagesList
+    {
+        IMessagesList Messages = LocalizableFactory.create(IMessagesList.class);
+
+        @DefaultString("Replay progress: {0}")
+        @Context("Периодический отчет о ходе повторной загрузки диапазона раздела.")
+        @Tags({"logs"})
+        String replay_progress(String progress);
+
+        @DefaultString("Replay finished: {0}")
+        @Context("Повторная загрузка диапазона раздела завершена.")
+        @Tags({"logs"})
+        String replay_finished(String progress);
+
+        @DefaultString("Replay stopped before the end of the range: {0}")
+        @Context("Повторная загрузка диапазона раздела остановлена прерыванием потока или отменой до конца диапазона.")
+        @Tags({"logs"})
+        String replay_stopped(String progress);
+
+        @DefaultString("Replay failed at {0}: {1}")
+        @Context("Повторная загрузка диапазона раздела прервана ошибкой.")
+        @Tags({"logs"})
+        String replay_failed(String progress, String value);
+
+        @DefaultString("Cannot find leader for shard {0}.")
+        @Context("Ни один брокер не сообщил лидера раздела временного хранилища.")
+        @Tags({"logs"})
+        String leader_not_found(int shard);
+
+        @DefaultString("Fetch from shard {0} failed with error code {1}.")
+        @Context("Брокер временного хранилища вернул ошибку выборки раздела, повторы исчерпаны.")
+        @Tags({"logs"})
+        String fetch_failed(int shard, short code);
+
+        @DefaultString("Offset {0} is out of the shard log range.")
+        @Context("Запрошенное смещение отсутствует в журнале раздела временного хранилища.")
+        @Tags({"logs"})
+        String offset_out_of_range(long offset);
+    }
+}
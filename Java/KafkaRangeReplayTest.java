@@ -0,0 +1,79 @@
+---
+import java.util.Collections;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+---
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Тесты остановки {@link KafkaRangeReplay} до конца диапазона. Брокеры не заданы, поэтому загрузка повторяет поиск
+ * лидера с паузами, пока ее не остановят.
+ */
+public class KafkaRangeReplayTest
+{
+    private static final long TIMEOUT = 10;
+
+    @Test
+    public void interruptedReplayCompletesExceptionally() throws Exception
+    {
+        KafkaRangeReplay replay = newReplay();
+        Thread thread = new Thread(replay, "KafkaReplayTest");
+        thread.start();
+        // Даем загрузке начать ожидание лидера.
+        Thread.sleep(50);
+        thread.interrupt();
+        thread.join(TimeUnit.SECONDS.toMillis(TIMEOUT));
+
+        CompletableFuture<Void> completion = replay.getProgress().getCompletion();
+        assertTrue(completion.isDone());
+        try
+        {
+            completion.get();
+            fail("Interrupted replay must not complete normally");
+        }
+        catch (ExecutionException e)
+        {
+            assertTrue(e.getCause() instanceof InterruptedException);
+        }
+        assertEquals(0, replay.getProgress().getPosition());
+    }
+
+    @Test
+    public void cancelledReplayIsNotReportedFinished() throws Exception
+    {
+        KafkaRangeReplay replay = newReplay();
+        Thread thread = new Thread(replay, "KafkaReplayTest");
+        thread.start();
+        Thread.sleep(50);
+        replay.getProgress().getCompletion().cancel(false);
+        thread.join(TimeUnit.SECONDS.toMillis(TIMEOUT));
+
+        assertFalse(thread.isAlive());
+        try
+        {
+            replay.getProgress().getCompletion().get();
+            fail("Cancelled replay must not complete normally");
+        }
+        catch (CancellationException e)
+        {
+            // Ожидаемо.
+        }
+    }
+
+    private static KafkaRangeReplay newReplay()
+    {
+        Shard shard = mock(Shard.class);
+        when(shard.getShardNumber()).thenReturn(0);
+        return new KafkaRangeReplay("test", Collections.emptyList(), shard, 0, 100, ForkJoinPool.commonPool(),
+                payload -> null, (events, metaInfo) -> fail("Nothing must be loaded"));
+    }
+}
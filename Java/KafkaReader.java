@@ -5,11 +5,24 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
 import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
 import java.util.concurrent.RejectedExecutionException;
-import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
 import kafka.common.KafkaException;
 ---
 import static com.google.common.base.Preconditions.checkArgument;
@@ -25,27 +38,122 @@ import static com.google.common.base.Preconditions.checkArgument;
  * reader.begin(brokers, shard, bufController);
  * </pre>
  *
+ * В потоковом режиме каждый обработчик раздела выполняется в цикле без паузы между раундами, а ожидание новых
+ * сообщений переносится в сам запрос к брокеру ({@code fetch.wait.max.ms}, {@code fetch.min.bytes}). Задержка
+ * доставки определяется временем ответа брокера, а не периодом опроса:
+ *
+ * <pre>
+ * KafkaReader reader = new KafkaReader(propsKafka, topicName, countThread, serializedFactory, true);
+ * </pre>
+ *
+ * В режиме мультиплексирования один пул из countThread потоков обслуживает до countThread * shardsPerThread
+ * разделов. Раунд чтения раздела - отдельная задача {@link ForkJoinPool} в режиме FIFO, которая по завершении ставит
+ * следующий раунд своего раздела в очередь текущего потока. Разделы одной очереди поэтому обслуживаются по кругу, а
+ * простаивающие потоки забирают раунды из чужих очередей. Ожидание данных брокером в этом режиме короче, так как
+ * поток, ждущий ответа, не обслуживает другие разделы:
+ *
+ * <pre>
+ * KafkaReader reader = new KafkaReader(propsKafka, topicName, countThread, shardsPerThread, serializedFactory);
+ * </pre>
+ *
+ * В режиме виртуальных потоков каждый раздел читается потоково в собственном виртуальном потоке с блокирующим
+ * ожиданием данных у брокера, и подбирать количество потоков не нужно. Режим требует Java 24 и выше: потребитель
+ * Kafka 0.8 ждет ответа брокера внутри {@code synchronized}, а до Java 24 это закрепляет виртуальный поток за
+ * несущим, и одновременных запросов становится не больше количества ядер. На более ранних версиях, как и без
+ * поддержки виртуальных потоков, используются обычные потоки по одному на раздел:
+ *
+ * <pre>
+ * KafkaReader reader = KafkaReader.withVirtualThreads(propsKafka, topicName, maxShards, serializedFactory);
+ * </pre>
+ *
+ * Показатели чтения разделов ({@link IKafkaReaderMetrics}) публикуют сами обработчики: после каждого ответа на
+ * запрос чтения обработчик сообщает смещение следующей выборки, конец журнала раздела из ответа и объем выборки.
+ * Снятие показателей только читает опубликованные значения и к брокерам не обращается:
+ *
+ * <pre>
+ * FetchResponse response = consumer.fetch(request);
+ * ...
+ * reader.recordFetch(shard, nextOffset, response.highWatermark(topicName, partition), fetchedBytes);
+ * </pre>
+ * <p>
+ * Диапазон смещений раздела можно повторно загрузить в хранилище в обход обычного чтения и фиксации офсетов
+ * (например, после сбоя хранилища):
+ *
+ * <pre>
+ * ReplayProgress progress = reader.replay(brokers, shard, fromOffset, toOffset, decoder, sink);
+ * progress.getCompletion().get();
+ * </pre>
+ *
+ * Раздел можно приостановить и возобновить, не пересоздавая обработчик: соединение с брокером, позиция и
+ * прочитанные, но еще не агрегированные события сохраняются. Раунд, выполняющийся в момент приостановки,
+ * доводится до конца:
+ *
+ * <pre>
+ * reader.pause(shard);
+ * ...
+ * reader.resume(shard);
+ * </pre>
+ *
  * <p>
  * <b>Synchronization</b>
  * <p>
  * Экземпляр данного класса является потокобезопасным.
  *
  * @see IKafkaReader
+ * @see IKafkaReaderMetrics
  * @see KafkaWorker
  */
-public class KafkaReader implements IKafkaReader
+public class KafkaReader implements IKafkaReader, IKafkaReaderMetrics
 {
     /**
      * Тайм-аут для scheduleWithFixedDelay(читатели разделов) 
      */
     private static final int TIMEOUT = 1;
+    /**
+     * Максимальное время ожидания данных брокером в потоковом режиме, если не задано в настройках, мс.
+     */
+    private static final String NAME_FETCH_WAIT_MAX_MS = "fetch.wait.max.ms";
+    private static final String FETCH_WAIT_MAX_MS = "100";
+    /**
+     * Максимальное время ожидания данных брокером в режиме мультиплексирования, если не задано в настройках, мс.
+     */
+    private static final String MULTIPLEXED_FETCH_WAIT_MAX_MS = "10";
+    private static final String NAME_FETCH_MIN_BYTES = "fetch.min.bytes";
+    private static final String FETCH_MIN_BYTES = "1";
+    /**
+     * Пауза потокового обработчика, пока буфер событий переполнен, мс.
+     */
+    private static final long FULL_BUFFER_PAUSE = 10;
+    /**
+     * Первая версия Java, в которой ожидание внутри {@code synchronized} не закрепляет виртуальный поток.
+     */
+    private static final int VIRTUAL_THREADS_MIN_JAVA = 24;
     private final Properties propsKafka;
     private final String topicName;
     private final ISerializerFactory serializedFactory;
     private final ScheduledThreadPoolExecutor serviceKafka;
-    private final Map<Shard, KafkaShardWorker> workers = new HashMap<>();
-    private final Map<Shard, ScheduledFuture<?>> processes = new HashMap<>();
+    /**
+     * Пул раундов чтения в режиме мультиплексирования, {@code null} - у каждого раздела свой поток.
+     */
+    private final ForkJoinPool roundPool;
+    /**
+     * Исполнитель "поток на раздел" в режиме виртуальных потоков, {@code null} - режим не используется.
+     */
+    private final ExecutorService shardExecutor;
+    /**
+     * Состояние читаемых и приостановленных разделов. Переходы жизненного цикла раздела выполняются под монитором
+     * его состояния, поэтому операции над разными разделами друг друга не блокируют.
+     */
+    private final ConcurrentMap<Shard, ShardState> shards = new ConcurrentHashMap<>();
+    /**
+     * Количество разделов, которые читаются сейчас (без приостановленных).
+     */
+    private final AtomicInteger running = new AtomicInteger();
     private final int maxCountThread;
+    private final int shardsPerThread;
+    private final boolean streaming;
+    private final ExecutorService replayService = Executors.newCachedThreadPool(new DefaultThreadFactory(
+            "KafkaReplay"));
 
     /**
      * Конструктор. Инициализирует потоки для обработки сообщений
@@ -56,62 +164,293 @@ public class KafkaReader implements IKafkaReader
      * @param serializedFactory фабрика сериализатора
      */
     public KafkaReader(Properties propsKafka, String topicName, int countThread, ISerializerFactory serializedFactory)
+    {
+        this(propsKafka, topicName, countThread, serializedFactory, false);
+    }
+
+    /**
+     * Конструктор. Инициализирует потоки для обработки сообщений
+     * 
+     * @param propsKafka настройки Kafka
+     * @param topicName имя топика
+     * @param countThread количество потоков для чтения сообщений
+     * @param serializedFactory фабрика сериализатора
+     * @param streaming {@code true} - потоковый режим: обработчики читают разделы непрерывно с ожиданием данных на
+     *            стороне брокера, {@code false} - раунд чтения раз в секунду
+     */
+    public KafkaReader(Properties propsKafka, String topicName, int countThread, ISerializerFactory serializedFactory,
+            boolean streaming)
+    {
+        this(propsKafka, topicName, countThread, 1, serializedFactory, streaming, false);
+    }
+
+    /**
+     * Конструктор. Инициализирует пул потоков, разделяемый несколькими разделами
+     * 
+     * @param propsKafka настройки Kafka
+     * @param topicName имя топика
+     * @param countThread количество потоков для чтения сообщений
+     * @param shardsPerThread количество разделов на один поток
+     * @param serializedFactory фабрика сериализатора
+     */
+    public KafkaReader(Properties propsKafka, String topicName, int countThread, int shardsPerThread,
+            ISerializerFactory serializedFactory)
+    {
+        this(propsKafka, topicName, countThread, shardsPerThread, serializedFactory, false, false);
+    }
+
+    /**
+     * Создает читатель, в котором каждый раздел читается в собственном виртуальном потоке.
+     * 
+     * @param propsKafka настройки Kafka
+     * @param topicName имя топика
+     * @param maxShards максимальное количество разделов
+     * @param serializedFactory фабрика сериализатора
+     * @return читатель
+     */
+    public static KafkaReader withVirtualThreads(Properties propsKafka, String topicName, int maxShards,
+            ISerializerFactory serializedFactory)
+    {
+        return new KafkaReader(propsKafka, topicName, maxShards, 1, serializedFactory, true, true);
+    }
+
+    private KafkaReader(Properties propsKafka, String topicName, int countThread, int shardsPerThread,
+            ISerializerFactory serializedFactory, boolean streaming, boolean virtualThreads)
     {
         checkArgument(propsKafka != null);
-        this.propsKafka = propsKafka;
+        checkArgument(countThread > 0);
+        checkArgument(shardsPerThread > 0);
+        boolean multiplexed = shardsPerThread > 1;
+        if (multiplexed)
+            this.propsKafka = withLongPoll(propsKafka, MULTIPLEXED_FETCH_WAIT_MAX_MS);
+        else
+            this.propsKafka = streaming ? withLongPoll(propsKafka, FETCH_WAIT_MAX_MS) : propsKafka;
         this.topicName = topicName;
         this.serializedFactory = serializedFactory;
         DefaultThreadFactory threadFactory = new DefaultThreadFactory("KafkaReader");
-        this.serviceKafka = new ScheduledThreadPoolExecutor(countThread, threadFactory);
+        // В режимах мультиплексирования и виртуальных потоков планировщик нужен только для отложенных раундов.
+        this.serviceKafka = new ScheduledThreadPoolExecutor(multiplexed || virtualThreads ? 1 : countThread,
+                threadFactory);
+        this.shardExecutor = virtualThreads ? newThreadPerTaskExecutor() : null;
+        this.roundPool = multiplexed ? new ForkJoinPool(countThread, pool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("KafkaReader-round-" + thread.getPoolIndex());
+            return thread;
+        }, null, true) : null;
         this.maxCountThread = countThread;
+        this.shardsPerThread = shardsPerThread;
+        this.streaming = streaming;
     }
 
     @Override
-    public synchronized void commit()
+    public void commit()
     {
-        for (Entry<Shard, KafkaShardWorker> entry : workers.entrySet())
-        {
-            entry.getValue().commit();
-        }
+        for (ShardState state : shards.values())
+            state.runner.commit();
     }
 
     @Override
-    public synchronized void begin(List<InetSocketAddress> brokers, Shard shard,
+    public void begin(List<InetSocketAddress> brokers, Shard shard,
             IKafkaReaderBufferController kafkaReaderBufferController, IRecoveryService recoveryService)
             throws KafkaException
     {
-        if (processes.size() < maxCountThread)
+        while (true)
         {
-            if (processes.get(shard) == null)
+            // Состояние создается без соединения с брокером, поэтому одновременные вызовы для одного раздела
+            // получают одно и то же состояние, а обработчик создает первый раунд чтения.
+            ShardState state = shards.computeIfAbsent(shard, key -> new ShardState(new ShardRunner(
+                    () -> new KafkaShardWorker(propsKafka, brokers, topicName, key.getShardNumber(), serializedFactory,
+                            kafkaReaderBufferController, recoveryService), kafkaReaderBufferController),
+                    new ShardMetricsState(brokers, recoveryService)));
+            ShardStatus status;
+            synchronized (state)
             {
-                KafkaShardWorker kafkaWorker = new KafkaShardWorker(propsKafka, brokers, topicName, shard.getShardNumber(),
-                        serializedFactory, kafkaReaderBufferController, recoveryService);
-                try
+                status = state.status.get();
+                if (status == ShardStatus.STARTING)
                 {
-                    ScheduledFuture<?> future =
-                            serviceKafka.scheduleWithFixedDelay(kafkaWorker, TIMEOUT, TIMEOUT, TimeUnit.SECONDS);
-                    workers.put(shard, kafkaWorker);
-                    processes.put(shard, future);
+                    startNew(shard, state);
+                    return;
                 }
-                catch (RejectedExecutionException ex)
+            }
+            if (status == ShardStatus.RUNNING)
+                return;
+            if (status == ShardStatus.PAUSED)
+            {
+                // Приостановленный раздел с теми же параметрами возобновляется с сохраненными соединением и
+                // буфером, иначе обработчик пересоздается.
+                if (state.isSameSource(brokers, kafkaReaderBufferController, recoveryService))
                 {
-                    throw new KafkaException(ex);
+                    resume(shard);
+                    return;
                 }
+                end(shard);
             }
+            // Раздел остановлен: его состояние уже удалено или удаляется, следующая попытка создаст новое.
         }
     }
 
+    /**
+     * Запускает чтение только что созданного раздела. Вызывается под монитором состояния.
+     */
+    private void startNew(Shard shard, ShardState state) throws KafkaException
+    {
+        if (!reserve())
+        {
+            shards.remove(shard, state);
+            state.status.set(ShardStatus.STOPPED);
+            return;
+        }
+        try
+        {
+            state.process = start(state.runner);
+        }
+        catch (KafkaException ex)
+        {
+            shards.remove(shard, state);
+            running.decrementAndGet();
+            state.status.set(ShardStatus.STOPPED);
+            throw ex;
+        }
+        state.status.set(ShardStatus.RUNNING);
+    }
+
     @Override
-    public synchronized void end(Shard shard) throws KafkaException
+    public void end(Shard shard) throws KafkaException
+    {
+        ShardState state = shards.get(shard);
+        if (state == null)
+            return;
+        synchronized (state)
+        {
+            ShardStatus status = state.status.get();
+            if (status == ShardStatus.STOPPED)
+                return;
+            if (status == ShardStatus.RUNNING)
+            {
+                // Задача, завершившаяся ошибкой раунда, уже не выполняется.
+                boolean calceled = state.process.cancel(true) || state.process.isDone();
+                if (!calceled)
+                    throw new KafkaException(Messages.failed_cancel_thread());
+                running.decrementAndGet();
+            }
+            state.status.set(ShardStatus.STOPPED);
+            shards.remove(shard, state);
+        }
+        // Отмена в потоковом режиме и режиме мультиплексирования поток не прерывает, а приостановленный раздел
+        // держит соединение открытым, поэтому обработчик закрывается явно после выполняющегося раунда.
+        state.runner.close();
+    }
+
+    /**
+     * Приостанавливает чтение раздела, сохраняя обработчик с соединением, позицией и буфером событий. Поток не
+     * прерывается: выполняющийся раунд чтения доводится до конца. Приостановленный раздел не считается читаемым
+     * ({@link #isWork(Shard)}) и не занимает место в пуле потоков, но продолжает участвовать в фиксации офсетов.
+     * {@link #begin(List, Shard, IKafkaReaderBufferController, IRecoveryService)} с теми же брокерами, буфером и
+     * сервисом восстановления возобновляет приостановленный раздел, с другими - пересоздает его обработчик.
+     *
+     * @param shard раздел
+     * @return {@code true}, если раздел приостановлен этим вызовом
+     */
+    public boolean pause(Shard shard)
+    {
+        ShardState state = shards.get(shard);
+        if (state == null)
+            return false;
+        synchronized (state)
+        {
+            if (state.status.get() != ShardStatus.RUNNING)
+                return false;
+            state.process.cancel(false);
+            running.decrementAndGet();
+            state.status.set(ShardStatus.PAUSED);
+            return true;
+        }
+    }
+
+    /**
+     * Возобновляет чтение приостановленного раздела тем же обработчиком.
+     *
+     * @param shard раздел
+     * @return {@code true}, если чтение возобновлено, {@code false} - раздел не приостановлен или пул заполнен
+     * @throws KafkaException если задачу чтения не удалось запустить
+     */
+    public boolean resume(Shard shard) throws KafkaException
+    {
+        ShardState state = shards.get(shard);
+        if (state == null)
+            return false;
+        synchronized (state)
+        {
+            if (state.status.get() != ShardStatus.PAUSED || !reserve())
+                return false;
+            try
+            {
+                state.process = start(state.runner);
+            }
+            catch (KafkaException ex)
+            {
+                running.decrementAndGet();
+                throw ex;
+            }
+            state.status.set(ShardStatus.RUNNING);
+            return true;
+        }
+    }
+
+    /**
+     * Проверяет, приостановлено ли чтение раздела.
+     *
+     * @param shard раздел
+     * @return {@code true}, если раздел приостановлен
+     */
+    public boolean isPaused(Shard shard)
+    {
+        return status(shard) == ShardStatus.PAUSED;
+    }
+
+    /**
+     * Занимает место для читаемого раздела, если пул не заполнен.
+     */
+    private boolean reserve()
     {
-        Future<?> future = processes.get(shard);
-        if (future != null)
+        int max = maxCountShards();
+        while (true)
+        {
+            int current = running.get();
+            if (current >= max)
+                return false;
+            if (running.compareAndSet(current, current + 1))
+                return true;
+        }
+    }
+
+    private ShardStatus status(Shard shard)
+    {
+        ShardState state = shards.get(shard);
+        return state == null ? ShardStatus.STOPPED : state.status.get();
+    }
+
+    private Future<?> start(ShardRunner runner) throws KafkaException
+    {
+        try
+        {
+            if (roundPool != null)
+            {
+                CompletableFuture<Void> handle = new CompletableFuture<>();
+                roundPool.execute(new ShardRound(runner, handle));
+                return handle;
+            }
+            if (streaming)
+            {
+                CompletableFuture<Void> handle = new CompletableFuture<>();
+                (shardExecutor != null ? shardExecutor : serviceKafka).execute(new StreamingShardTask(runner, handle));
+                return handle;
+            }
+            return serviceKafka.scheduleWithFixedDelay(runner, TIMEOUT, TIMEOUT, TimeUnit.SECONDS);
+        }
+        catch (RejectedExecutionException ex)
         {
-            boolean calceled = future.cancel(true);
-            if (!calceled)
-                throw new KafkaException(Messages.failed_cancel_thread());
-            processes.remove(shard);
-            workers.remove(shard);
+            throw new KafkaException(ex);
         }
     }
 
@@ -123,44 +462,483 @@ public class KafkaReader implements IKafkaReader
     @Override
     public void release()
     {
-        for (Entry<Shard, ScheduledFuture<?>> entry : processes.entrySet())
-            entry.getValue().cancel(true);
-        for (Entry<Shard, KafkaShardWorker> entry : workers.entrySet())
-            entry.getValue().close();
-        processes.clear();
-        workers.clear();
+        for (ShardState state : shards.values())
+        {
+            synchronized (state)
+            {
+                if (state.status.getAndSet(ShardStatus.STOPPED) == ShardStatus.RUNNING)
+                    state.process.cancel(true);
+            }
+            state.runner.close();
+        }
+        shards.clear();
+        running.set(0);
         serviceKafka.shutdown();
+        replayService.shutdownNow();
+        if (shardExecutor != null)
+            shardExecutor.shutdown();
+        if (roundPool != null)
+            roundPool.shutdown();
     }
 
+    /**
+     * Возвращает максимальное количество разделов: количество потоков, умноженное на количество разделов на поток.
+     */
     @Override
     public int maxCountShards()
     {
-        return maxCountThread;
+        return maxCountThread * shardsPerThread;
     }
 
     @Override
-    public synchronized boolean isWork(Shard shard)
+    public boolean isWork(Shard shard)
     {
-        return processes.get(shard) == null ? false : true;
+        return status(shard) == ShardStatus.RUNNING;
     }
 
     @Override
     public void setCommitOffset(Shard shard)
     {
-        KafkaShardWorker worker = workers.get(shard);
-        if (worker != null)
-            worker.setCommitOffset();
+        ShardState state = shards.get(shard);
+        if (state != null)
+            state.runner.setCommitOffset();
     }
 
     @Override
     public boolean isCommitted(Shard shard)
     {
-        KafkaShardWorker worker = workers.get(shard);
-        if (worker != null)
-            return worker.isCommitted();
+        ShardState state = shards.get(shard);
+        if (state != null)
+            return state.runner.isCommitted();
         return false;
     }
 
+    @Override
+    public Map<Shard, ShardReadMetrics> getShardMetrics()
+    {
+        Map<Shard, ShardReadMetrics> result = new HashMap<>();
+        for (Entry<Shard, ShardState> entry : shards.entrySet())
+            result.put(entry.getKey(), entry.getValue().metrics.sample(entry.getKey()));
+        return result;
+    }
+
+    /**
+     * Запускает повторную загрузку диапазона смещений раздела [fromOffset, toOffset) в хранилище. Раздел читается
+     * без пауз отдельным потребителем, сообщения разбираются в общем пуле, события передаются в приемник пачками.
+     * Офсеты группы потребителей не фиксируются и не меняются, обычное чтение раздела продолжается независимо.
+     *
+     * @param brokers брокеры временного хранилища
+     * @param shard раздел
+     * @param fromOffset первое загружаемое смещение
+     * @param toOffset смещение, следующее за последним загружаемым
+     * @param decoder разбор сообщения
+     * @param sink приемник событий
+     * @return ход загрузки
+     * @throws KafkaException если загрузку не удалось запустить
+     */
+    public ReplayProgress replay(List<InetSocketAddress> brokers, Shard shard, long fromOffset, long toOffset,
+            ShardDecodePipeline.IDecoder decoder, IReplaySink sink) throws KafkaException
+    {
+        checkArgument(brokers != null && !brokers.isEmpty());
+        checkArgument(decoder != null);
+        checkArgument(sink != null);
+        KafkaRangeReplay replay = new KafkaRangeReplay(topicName, brokers, shard, fromOffset, toOffset,
+                ForkJoinPool.commonPool(), decoder, sink);
+        try
+        {
+            replayService.execute(replay);
+        }
+        catch (RejectedExecutionException ex)
+        {
+            throw new KafkaException(ex);
+        }
+        return replay.getProgress();
+    }
+
+    /**
+     * Публикует результат выборки обработчика раздела для показателей чтения. Вызывается из цикла чтения после
+     * каждого ответа брокера.
+     *
+     * @param shard раздел
+     * @param fetchOffset смещение следующей выборки
+     * @param highWatermark конец журнала раздела из ответа брокера
+     * @param bytes количество прочитанных байтов
+     */
+    public void recordFetch(Shard shard, long fetchOffset, long highWatermark, int bytes)
+    {
+        checkArgument(bytes >= 0);
+        ShardState state = shards.get(shard);
+        if (state != null)
+            state.metrics.record(fetchOffset, highWatermark, bytes);
+    }
+
+    /**
+     * Создает исполнитель с виртуальным потоком на задачу. Код собирается под Java 8, поэтому фабрика виртуальных
+     * потоков вызывается через отражение. До Java 24 и без фабрики используется обычный поток на задачу.
+     */
+    private static ExecutorService newThreadPerTaskExecutor()
+    {
+        if (javaVersion() >= VIRTUAL_THREADS_MIN_JAVA)
+        {
+            try
+            {
+                return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            }
+            catch (ReflectiveOperationException | RuntimeException e)
+            {
+                // Виртуальные потоки недоступны.
+            }
+        }
+        return Executors.newCachedThreadPool(new DefaultThreadFactory("KafkaReader"));
+    }
+
+    /**
+     * Возвращает основную версию Java: "1.8" - 8, "24" - 24.
+     */
+    private static int javaVersion()
+    {
+        String version = System.getProperty("java.specification.version", "");
+        if (version.startsWith("1."))
+            version = version.substring(2);
+        try
+        {
+            return Integer.parseInt(version);
+        }
+        catch (NumberFormatException e)
+        {
+            return 0;
+        }
+    }
+
+    /**
+     * Дополняет настройки ожиданием данных на стороне брокера, не меняя явно заданных значений.
+     */
+    private static Properties withLongPoll(Properties propsKafka, String fetchWaitMaxMs)
+    {
+        Properties props = new Properties();
+        props.putAll(propsKafka);
+        if (props.getProperty(NAME_FETCH_WAIT_MAX_MS) == null)
+            props.setProperty(NAME_FETCH_WAIT_MAX_MS, fetchWaitMaxMs);
+        if (props.getProperty(NAME_FETCH_MIN_BYTES) == null)
+            props.setProperty(NAME_FETCH_MIN_BYTES, FETCH_MIN_BYTES);
+        return props;
+    }
+
+    /**
+     * Этап жизненного цикла раздела.
+     */
+    private enum ShardStatus
+    {
+        STARTING,
+        RUNNING,
+        PAUSED,
+        STOPPED
+    }
+
+    /**
+     * Состояние раздела. Этап читается без блокировок, переходы выполняются под монитором состояния.
+     */
+    private static final class ShardState
+    {
+        private final ShardRunner runner;
+        private final ShardMetricsState metrics;
+        private final AtomicReference<ShardStatus> status = new AtomicReference<>(ShardStatus.STARTING);
+        /**
+         * Задача чтения, изменяется только под монитором состояния.
+         */
+        private Future<?> process;
+
+        private ShardState(ShardRunner runner, ShardMetricsState metrics)
+        {
+            this.runner = runner;
+            this.metrics = metrics;
+        }
+
+        private boolean isSameSource(List<InetSocketAddress> brokers, IKafkaReaderBufferController bufferController,
+                IRecoveryService recoveryService)
+        {
+            return metrics.brokers.equals(brokers) && runner.bufferController == bufferController
+                    && metrics.recoveryService == recoveryService;
+        }
+    }
+
+    /**
+     * Показатели раздела, опубликованные обработчиком, и значения предыдущего снятия для расчета скоростей.
+     */
+    private static final class ShardMetricsState
+    {
+        private final List<InetSocketAddress> brokers;
+        private final IRecoveryService recoveryService;
+        private final AtomicLong fetchedBytes = new AtomicLong();
+        private volatile long fetchOffset = -1;
+        private volatile long highWatermark = -1;
+        private long lastSampleNanos = System.nanoTime();
+        private long lastPosition = -1;
+        private long lastFetchedBytes;
+
+        private ShardMetricsState(List<InetSocketAddress> brokers, IRecoveryService recoveryService)
+        {
+            this.brokers = brokers;
+            this.recoveryService = recoveryService;
+        }
+
+        private void record(long fetchOffset, long highWatermark, int bytes)
+        {
+            this.fetchOffset = fetchOffset;
+            this.highWatermark = highWatermark;
+            fetchedBytes.addAndGet(bytes);
+        }
+
+        private synchronized ShardReadMetrics sample(Shard shard)
+        {
+            long position = fetchOffset;
+            long now = System.nanoTime();
+            double seconds = Math.max(1, now - lastSampleNanos) / (double)TimeUnit.SECONDS.toNanos(1);
+            long bytes = fetchedBytes.get();
+            double messagesPerSecond = lastPosition < 0 || position < lastPosition ? 0
+                    : (position - lastPosition) / seconds;
+            double bytesPerSecond = (bytes - lastFetchedBytes) / seconds;
+            lastSampleNanos = now;
+            lastPosition = position;
+            lastFetchedBytes = bytes;
+            return new ShardReadMetrics(shard, position, highWatermark, messagesPerSecond, bytesPerSecond);
+        }
+    }
+
+    /**
+     * Раунды обработчика раздела. Раунды выполняются строго по одному, поэтому задача, запущенная после
+     * возобновления, не пересекается с раундом, который доводится до конца после приостановки, а обработчик
+     * закрывается только между раундами. Используется {@link Lock}, а не монитор: блокирующий запрос внутри монитора
+     * закрепил бы виртуальный поток за несущим.
+     * <p>
+     * Обработчик и соединение с брокером создаются в первом раунде. Фиксация офсетов выполняется параллельно с
+     * раундами, но под отдельной блокировкой, которую берет и закрытие, поэтому фиксация никогда не обращается к уже
+     * закрытому обработчику.
+     */
+    private static final class ShardRunner implements Runnable
+    {
+        private final Supplier<KafkaShardWorker> connector;
+        private final IKafkaReaderBufferController bufferController;
+        /**
+         * Блокировка раундов.
+         */
+        private final Lock lock = new ReentrantLock();
+        /**
+         * Блокировка фиксации офсетов, при закрытии берется после {@link #lock}.
+         */
+        private final Lock commitLock = new ReentrantLock();
+        /**
+         * Обработчик, {@code null} - еще не создан. Создается под {@link #lock}.
+         */
+        private volatile KafkaShardWorker worker;
+        /**
+         * Обработчик закрыт, изменяется под {@link #lock} и {@link #commitLock}.
+         */
+        private boolean closed;
+
+        private ShardRunner(Supplier<KafkaShardWorker> connector, IKafkaReaderBufferController bufferController)
+        {
+            this.connector = connector;
+            this.bufferController = bufferController;
+        }
+
+        @Override
+        public void run()
+        {
+            lock.lock();
+            try
+            {
+                if (closed)
+                    return;
+                KafkaShardWorker current = worker;
+                if (current == null)
+                {
+                    current = connector.get();
+                    worker = current;
+                }
+                current.run();
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Фиксирует офсеты, если обработчик создан и не закрыт.
+         */
+        private void commit()
+        {
+            commitLock.lock();
+            try
+            {
+                KafkaShardWorker current = worker;
+                if (!closed && current != null)
+                    current.commit();
+            }
+            finally
+            {
+                commitLock.unlock();
+            }
+        }
+
+        /**
+         * Запоминает текущую позицию для следующей фиксации, если обработчик создан и не закрыт.
+         */
+        private void setCommitOffset()
+        {
+            commitLock.lock();
+            try
+            {
+                KafkaShardWorker current = worker;
+                if (!closed && current != null)
+                    current.setCommitOffset();
+            }
+            finally
+            {
+                commitLock.unlock();
+            }
+        }
+
+        /**
+         * Проверяет, зафиксирована ли запомненная позиция.
+         *
+         * @return {@code false}, если обработчик еще не создан или закрыт
+         */
+        private boolean isCommitted()
+        {
+            commitLock.lock();
+            try
+            {
+                KafkaShardWorker current = worker;
+                return !closed && current != null && current.isCommitted();
+            }
+            finally
+            {
+                commitLock.unlock();
+            }
+        }
+
+        /**
+         * Дожидается завершения выполняющегося раунда и фиксации и закрывает обработчик. Последующие раунды и
+         * фиксации не выполняются.
+         */
+        private void close()
+        {
+            lock.lock();
+            commitLock.lock();
+            try
+            {
+                if (!closed)
+                {
+                    closed = true;
+                    KafkaShardWorker current = worker;
+                    if (current != null)
+                        current.close();
+                }
+            }
+            finally
+            {
+                commitLock.unlock();
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Потоковое чтение раздела: раунды обработчика выполняются один за другим до отмены handle. Отмена не прерывает
+     * поток, чтобы не закрыть соединение обработчика посреди запроса. Пока буфер событий переполнен, раунд заведомо
+     * ничего не прочитает, поэтому вместо холостого цикла делается короткая пауза.
+     */
+    private static final class StreamingShardTask implements Runnable
+    {
+        private final ShardRunner runner;
+        private final CompletableFuture<Void> handle;
+
+        private StreamingShardTask(ShardRunner runner, CompletableFuture<Void> handle)
+        {
+            this.runner = runner;
+            this.handle = handle;
+        }
+
+        @Override
+        public void run()
+        {
+            while (!handle.isDone() && !Thread.currentThread().isInterrupted())
+            {
+                if (runner.bufferController.isFull())
+                {
+                    try
+                    {
+                        TimeUnit.MILLISECONDS.sleep(FULL_BUFFER_PAUSE);
+                    }
+                    catch (InterruptedException e)
+                    {
+                        Thread.currentThread().interrupt();
+                    }
+                    continue;
+                }
+                try
+                {
+                    runner.run();
+                }
+                catch (RuntimeException e)
+                {
+                    handle.completeExceptionally(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Один раунд чтения раздела в режиме мультиплексирования. Следующий раунд ставится в очередь текущего потока
+     * после всех уже ожидающих раундов других разделов. Отмена handle останавливает цепочку раундов, раунд, который
+     * уже выполняется, доводится до конца. Ошибка раунда, как и в периодическом режиме, прекращает чтение раздела.
+     */
+    private final class ShardRound extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+        private final transient ShardRunner runner;
+        private final transient CompletableFuture<Void> handle;
+
+        private ShardRound(ShardRunner runner, CompletableFuture<Void> handle)
+        {
+            this.runner = runner;
+            this.handle = handle;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if (handle.isDone())
+                return;
+            ShardRound next = new ShardRound(runner, handle);
+            if (runner.bufferController.isFull())
+            {
+                // Поток пула не должен простаивать, пока буфер переполнен: раунд откладывается.
+                try
+                {
+                    serviceKafka.schedule(() -> roundPool.execute(next), FULL_BUFFER_PAUSE, TimeUnit.MILLISECONDS);
+                }
+                catch (RejectedExecutionException e)
+                {
+                    handle.cancel(false);
+                }
+                return;
+            }
+            try
+            {
+                runner.run();
+            }
+            catch (RuntimeException e)
+            {
+                handle.completeExceptionally(e);
+                return;
+            }
+            next.fork();
+        }
+    }
+
     @Localizable
     interface IMessagesList
     {
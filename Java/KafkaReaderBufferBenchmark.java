@@ -0,0 +1,105 @@
+---
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+---
+import static org.mockito.Mockito.mock;
+
+/**
+ * Сравнение контроллеров буфера раздела под конкуренцией: {@link KafkaReaderBufferControllerImpl} (монитор и двойной
+ * буфер) и {@link KafkaReaderRingBufferController} (кольцо без блокировок). Четыре потока добавляют пачки, один
+ * поток агрегирует. Агрегатор, читатель и сервис восстановления - заглушки, поэтому измеряется только сам буфер.
+ * Операции добавления включают отказы переполненного буфера.
+ * <p>
+ * Запуск:
+ *
+ * <pre>
+ * java -jar benchmarks.jar KafkaReaderBufferBenchmark -prof gc
+ * </pre>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+@State(Scope.Group)
+public class KafkaReaderBufferBenchmark
+{
+    private static final int CAPACITY = 1024;
+    private static final ClusterEvents EVENTS = new ClusterEvents("benchmark", Collections.emptyList());
+    @Param({"monitor", "ring"})
+    public String controller;
+    private IKafkaReaderBufferController buffer;
+    private Shard shard;
+
+    @Setup(Level.Trial)
+    public void setUp()
+    {
+        IAggregator aggregator = stub(IAggregator.class);
+        IKafkaReader kafkaReader = stub(IKafkaReader.class);
+        IRecoveryService recoveryService = stub(IRecoveryService.class);
+        shard = mock(Shard.class);
+        buffer = "ring".equals(controller)
+                ? new KafkaReaderRingBufferController(aggregator, kafkaReader, recoveryService, CAPACITY)
+                : new KafkaReaderBufferControllerImpl(aggregator, kafkaReader, recoveryService, CAPACITY);
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(4)
+    public boolean add()
+    {
+        // Без повтора: поток агрегации может закончить итерацию раньше, и повтор в переполненный буфер не кончился бы.
+        return buffer.addEvents(EVENTS);
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(1)
+    public boolean aggregate()
+    {
+        return buffer.aggregate(shard);
+    }
+
+    /**
+     * Создает заглушку интерфейса вне проверяемого кода: агрегатор забирает все события, сервис восстановления
+     * возвращает постоянную метаинформацию, остальные методы возвращают значения по умолчанию.
+     */
+    private static <T> T stub(Class<T> type)
+    {
+        MetaClusterEvent metaInfo = MetaClusterEvent.instanceOf("localhost", 9092, 0, 0);
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type},
+                (proxy, method, args) -> {
+                    if (method.getName().equals("addEvent"))
+                    {
+                        ((Deque<?>)args[0]).clear();
+                        return null;
+                    }
+                    if (method.getName().equals("getMetainfo"))
+                        return metaInfo;
+                    Class<?> result = method.getReturnType();
+                    if (result == boolean.class)
+                        return false;
+                    if (result == int.class)
+                        return 0;
+                    if (result == long.class)
+                        return 0L;
+                    return null;
+                }));
+    }
+}
@@ -2,11 +2,23 @@
 import java.util.ArrayDeque;
 import java.util.Deque;
 import java.util.Optional;
+import java.util.function.ToIntFunction;
 ---
 import static com.google.common.base.Preconditions.checkArgument;
 
 /**
  * Реализация контроллера за очередью аггрегатора и потоком читателя из временного хранилища.
+ * <p>
+ * Буфер двойной: читатель заполняет текущее поколение, а при агрегации поколение подменяется пустым под коротким
+ * захватом монитора, и преобразование событий агрегатором идет уже без блокировки читателя. Смещение для фиксации
+ * задается в момент подмены, поэтому оно соответствует ровно отданному агрегатору поколению. Пока предыдущее
+ * смещение не зафиксировано, поколение отдается агрегатору без нового смещения, и его покроет смещение следующей
+ * агрегации. Если агрегатор не принял поколение, его события возвращаются в буфер перед более новыми.
+ * <p>
+ * Помимо количества пачек буфер может ограничиваться объемом в байтах и общим бюджетом памяти узла
+ * ({@link MemoryGovernor}). Объем пачки - размер сообщения временного хранилища, если его сообщает обработчик
+ * ({@link #addEvents(ClusterEvents, int)}), иначе оценка (например, {@link SampledEventsSizer}). Байты поколения
+ * возвращаются в бюджет узла после его агрегации, поэтому бюджет учитывает и поколение, отданное агрегатору.
  *
  * <p>
  * <b>Synchronization</b>
@@ -15,13 +27,39 @@ import static com.google.common.base.Preconditions.checkArgument;
  *
  * @see IKafkaReaderBufferController
  */
-public class KafkaReaderBufferControllerImpl implements IKafkaReaderBufferController
+public class KafkaReaderBufferControllerImpl implements IKafkaReaderBufferController, ISizedEventsBuffer
 {
+    /**
+     * Оценка размера пачки событий по умолчанию на одно событие, байт.
+     */
+    private static final int DEFAULT_EVENT_SIZE = 512;
     private final IAggregator aggregator;
     private final IKafkaReader kafkaReader;
-    private final Deque<ClusterEvents> buffer = new ArrayDeque<>();
+    /**
+     * Заполняемое поколение.
+     */
+    private Deque<ClusterEvents> buffer = new ArrayDeque<>();
+    /**
+     * Пустое поколение для следующей подмены.
+     */
+    private Deque<ClusterEvents> spare = new ArrayDeque<>();
+    /**
+     * Упорядочивает агрегации между собой, не блокируя читателя.
+     */
+    private final Object aggregateLock = new Object();
     private final IRecoveryService recoveryService;
     private final int fetchMaxSize;
+    private final long maxBufferBytes;
+    private final MemoryGovernor governor;
+    private final ToIntFunction<ClusterEvents> sizer;
+    /**
+     * Объем заполняемого поколения, байт.
+     */
+    private long bufferBytes;
+    /**
+     * Объем, занятый в бюджете узла: заполняемое поколение и поколение в агрегации, байт.
+     */
+    private long reservedBytes;
 
     /**
      * Конструктор.
@@ -33,54 +71,135 @@ public class KafkaReaderBufferControllerImpl implements IKafkaReaderBufferContro
      */
     public KafkaReaderBufferControllerImpl(IAggregator aggregator, IKafkaReader kafkaReader,
             IRecoveryService recoveryService, int fetchMaxSize)
+    {
+        this(aggregator, kafkaReader, recoveryService, fetchMaxSize, Long.MAX_VALUE, null, null);
+    }
+
+    /**
+     * Конструктор.
+     * 
+     * @param aggregator агрегатор
+     * @param kafkaReader читатель из временного хранилища
+     * @param recoveryService сервис восстановления после сбоя
+     * @param fetchMaxSize максимальный разбер батча на выборку
+     * @param maxBufferBytes максимальный объем буфера в байтах
+     * @param governor бюджет памяти узла, {@code null} - не используется
+     * @param sizer оценка размера пачки событий в байтах для пачек, размер сообщения которых неизвестен,
+     *            {@code null} - оценка по количеству событий
+     */
+    public KafkaReaderBufferControllerImpl(IAggregator aggregator, IKafkaReader kafkaReader,
+            IRecoveryService recoveryService, int fetchMaxSize, long maxBufferBytes, MemoryGovernor governor,
+            ToIntFunction<ClusterEvents> sizer)
     {
         checkArgument(aggregator != null);
         checkArgument(kafkaReader != null);
+        checkArgument(maxBufferBytes > 0);
         this.aggregator = aggregator;
         this.kafkaReader = kafkaReader;
         this.recoveryService = recoveryService;
         this.fetchMaxSize = fetchMaxSize;
+        this.maxBufferBytes = maxBufferBytes;
+        this.governor = governor;
+        this.sizer = sizer != null ? sizer : KafkaReaderBufferControllerImpl::estimateSize;
+    }
+
+    @Override
+    public boolean addEvents(ClusterEvents events)
+    {
+        checkArgument(events != null);
+        return addEvents(events, sizer.applyAsInt(events));
     }
 
     @Override
-    public synchronized boolean addEvents(ClusterEvents events)
+    public synchronized boolean addEvents(ClusterEvents events, int bytes)
     {
         checkArgument(events != null);
+        checkArgument(bytes >= 0);
         if (buffer.size() >= fetchMaxSize)
         {
             return false;
         }
+        // В пустой буфер пачка принимается всегда, иначе слишком большая пачка остановила бы раздел.
+        if (!buffer.isEmpty() && bufferBytes + bytes > maxBufferBytes)
+            return false;
+        if (governor != null && !governor.tryAcquire(reservedBytes, bytes))
+            return false;
         buffer.push(events);
+        bufferBytes += bytes;
+        reservedBytes += bytes;
         return true;
     }
 
     @Override
     public synchronized boolean isFull()
     {
-        return buffer.size() >= fetchMaxSize ? true : false;
+        return buffer.size() >= fetchMaxSize || bufferBytes >= maxBufferBytes
+                || governor != null && governor.isPressured(reservedBytes);
     }
 
     @Override
-    public synchronized boolean aggregate(Shard shard)
+    public boolean aggregate(Shard shard)
     {
-        if (!kafkaReader.isCommitted(shard))
-            return false;
-        MetaClusterEvent metaInfo = recoveryService.getMetainfo();
-        if (metaInfo == null && !buffer.isEmpty())
-            throw new IllegalStateException("Metainfo is null, but buffer event not empty!");
-        try
-        {
-            aggregator.addEvent(buffer, metaInfo == null ?  Optional.empty() : Optional.of(metaInfo));
-        }
-        catch (LoadException e)
+        synchronized (aggregateLock)
         {
-            throw new BufferException(e);
+            Deque<ClusterEvents> generation;
+            long generationBytes;
+            MetaClusterEvent metaInfo;
+            synchronized (this)
+            {
+                metaInfo = recoveryService.getMetainfo();
+                if (metaInfo == null && !buffer.isEmpty())
+                    throw new IllegalStateException("Metainfo is null, but buffer event not empty!");
+                generation = buffer;
+                generationBytes = bufferBytes;
+                buffer = spare;
+                bufferBytes = 0;
+                // В данном блоке процесс не может читать события,
+                // поэтому задать оффсет нужно тут. Пока предыдущий оффсет не зафиксирован, новый не запоминается:
+                // события поколения покроет оффсет следующей агрегации.
+                if (kafkaReader.isCommitted(shard))
+                    kafkaReader.setCommitOffset(shard);
+            }
+            try
+            {
+                aggregator.addEvent(generation, metaInfo == null ? Optional.empty() : Optional.of(metaInfo));
+            }
+            catch (LoadException e)
+            {
+                requeue(generation, generationBytes);
+                throw new BufferException(e);
+            }
+            generation.clear();
+            synchronized (this)
+            {
+                if (governor != null)
+                    governor.release(reservedBytes, generationBytes);
+                reservedBytes -= generationBytes;
+                spare = generation;
+            }
+            return true;
         }
-        buffer.clear();
-        // В данном блоке процесс не может читать события,
-        // поэтому задать оффсет нужно тут.
-        kafkaReader.setCommitOffset(shard);
-        return true;
+    }
+
+    /**
+     * Возвращает непринятое поколение в буфер. События добавляются через push, поэтому более старые события
+     * поколения должны оказаться в конце.
+     */
+    private synchronized void requeue(Deque<ClusterEvents> generation, long generationBytes)
+    {
+        for (ClusterEvents events : generation)
+            buffer.addLast(events);
+        bufferBytes += generationBytes;
+        generation.clear();
+        spare = generation;
+    }
+
+    /**
+     * Оценивает размер пачки без сериализации: имя ИБ и фиксированный размер на событие.
+     */
+    private static int estimateSize(ClusterEvents events)
+    {
+        return events.getIbName().length() * 2 + events.getEvents().size() * DEFAULT_EVENT_SIZE;
     }
 
     @Override
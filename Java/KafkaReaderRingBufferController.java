@@ -0,0 +1,169 @@
+---
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+---
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Контроллер буфера раздела на ограниченном кольцевом буфере без блокировок (много писателей, один читатель).
+ * Читатель из временного хранилища добавляет пачки одной CAS-операцией, агрегация забирает все опубликованные пачки
+ * за один проход и никогда не блокирует добавление.
+ * <p>
+ * Смещение для фиксации задается до выборки из кольца: обработчик раздела добавляет события раньше, чем сдвигает
+ * свою позицию, поэтому все события до запомненного смещения уже заняли места в кольце и попадут в выборку. События
+ * сверх смещения, успевшие попасть в выборку, после сбоя будут прочитаны повторно (at-least-once). Если агрегатор не
+ * принял выборку, она остается у контроллера вместе со своей метаинформацией, и следующие агрегации повторяют только
+ * ее: кольцо не выбирается и новое смещение не запоминается, пока выборка не принята. Иначе выборка росла бы с каждой
+ * неудачей, а смещение и метаинформация описывали бы события, которых в повторяемой выборке нет.
+ * <p>
+ * Вариант использования:
+ *
+ * <pre>
+ * IKafkaReaderBufferController buffer = new KafkaReaderRingBufferController(aggregator, kafkaReader,
+ *         recoveryService, 1024);
+ * </pre>
+ * <p>
+ * <b>Synchronization</b>
+ * <p>
+ * Экземпляр данного класса является потокобезопасным. {@link #addEvents(ClusterEvents)} и {@link #isFull()} не
+ * используют блокировок, агрегации упорядочены между собой.
+ *
+ * @see KafkaReaderBufferControllerImpl
+ */
+public class KafkaReaderRingBufferController implements IKafkaReaderBufferController
+{
+    private final IAggregator aggregator;
+    private final IKafkaReader kafkaReader;
+    private final IRecoveryService recoveryService;
+    private final int capacity;
+    private final int mask;
+    private final AtomicReferenceArray<ClusterEvents> slots;
+    /**
+     * Следующее место для записи, занимается писателями через CAS.
+     */
+    private final AtomicLong tail = new AtomicLong();
+    /**
+     * Следующее место для чтения, изменяется только агрегацией.
+     */
+    private final AtomicLong head = new AtomicLong();
+    /**
+     * Выборка, не принятая агрегатором. Более новые события - в начале. Доступна только под монитором агрегации.
+     */
+    private final Deque<ClusterEvents> pending = new ArrayDeque<>();
+    /**
+     * Метаинформация непринятой выборки. Доступна только под монитором агрегации.
+     */
+    private MetaClusterEvent pendingMetaInfo;
+
+    /**
+     * Конструктор.
+     *
+     * @param aggregator агрегатор
+     * @param kafkaReader читатель из временного хранилища
+     * @param recoveryService сервис восстановления после сбоя
+     * @param capacity емкость кольца в пачках, округляется вверх до степени двойки
+     */
+    public KafkaReaderRingBufferController(IAggregator aggregator, IKafkaReader kafkaReader,
+            IRecoveryService recoveryService, int capacity)
+    {
+        checkArgument(aggregator != null);
+        checkArgument(kafkaReader != null);
+        checkArgument(capacity > 0 && capacity <= 1 << 30);
+        this.aggregator = aggregator;
+        this.kafkaReader = kafkaReader;
+        this.recoveryService = recoveryService;
+        this.capacity = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        this.mask = this.capacity - 1;
+        this.slots = new AtomicReferenceArray<>(this.capacity);
+    }
+
+    @Override
+    public boolean addEvents(ClusterEvents events)
+    {
+        checkArgument(events != null);
+        while (true)
+        {
+            long position = tail.get();
+            if (position - head.get() >= capacity)
+                return false;
+            if (tail.compareAndSet(position, position + 1))
+            {
+                slots.set((int)position & mask, events);
+                return true;
+            }
+        }
+    }
+
+    @Override
+    public boolean isFull()
+    {
+        return tail.get() - head.get() >= capacity;
+    }
+
+    @Override
+    public synchronized boolean aggregate(Shard shard)
+    {
+        MetaClusterEvent metaInfo;
+        if (pending.isEmpty())
+        {
+            // Смещение и метаинформация берутся до снимка хвоста: все события до них уже заняли места в кольце.
+            // Пока предыдущее смещение не зафиксировано, новое не запоминается.
+            if (kafkaReader.isCommitted(shard))
+                kafkaReader.setCommitOffset(shard);
+            metaInfo = recoveryService.getMetainfo();
+            drainTo(tail.get());
+            if (metaInfo == null && !pending.isEmpty())
+                throw new IllegalStateException("Metainfo is null, but buffer event not empty!");
+        }
+        else
+        {
+            // Повтор непринятой выборки: ее покрывают смещение и метаинформация, запомненные при выборке.
+            metaInfo = pendingMetaInfo;
+        }
+        try
+        {
+            aggregator.addEvent(pending, metaInfo == null ? Optional.empty() : Optional.of(metaInfo));
+        }
+        catch (LoadException e)
+        {
+            pendingMetaInfo = metaInfo;
+            throw new BufferException(e);
+        }
+        pending.clear();
+        pendingMetaInfo = null;
+        return true;
+    }
+
+    @Override
+    public int fetchMaxSize()
+    {
+        return capacity;
+    }
+
+    /**
+     * Забирает пачки до заданной позиции. Писатель, занявший место, публикует пачку сразу же, поэтому ожидание
+     * пустого места короткое.
+     */
+    private void drainTo(long limit)
+    {
+        long position = head.get();
+        while (position < limit)
+        {
+            int index = (int)position & mask;
+            ClusterEvents events = slots.get(index);
+            if (events == null)
+            {
+                Thread.yield();
+                continue;
+            }
+            slots.lazySet(index, null);
+            pending.push(events);
+            ++position;
+            // Место освобождается сразу, чтобы писатели не ждали конца выборки.
+            head.lazySet(position);
+        }
+    }
+}
@@ -0,0 +1,125 @@
+---
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+---
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Нагрузочный тест жизненного цикла разделов {@link KafkaReader} на 256 разделах: begin/pause/resume/end, фиксация и
+ * проверки состояния выполняются конкурентно, в том числе несколько begin одного раздела одновременно. Обработчик
+ * раздела создается первым раундом чтения, а первый периодический раунд запускается через секунду, поэтому брокеры
+ * тесту не нужны.
+ */
+public class KafkaReaderStressTest
+{
+    private static final int SHARDS = 256;
+    private static final int THREADS = 32;
+    private static final int ITERATIONS = 20;
+    private static final List<InetSocketAddress> BROKERS = Collections.singletonList(
+            InetSocketAddress.createUnresolved("localhost", 1));
+    private final List<Shard> shards = new ArrayList<>();
+    private final IKafkaReaderBufferController buffer = mock(IKafkaReaderBufferController.class);
+    private final IRecoveryService recoveryService = mock(IRecoveryService.class);
+    private KafkaReader reader;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp()
+    {
+        reader = new KafkaReader(new Properties(), "test", SHARDS, mock(ISerializerFactory.class));
+        executor = Executors.newFixedThreadPool(THREADS);
+        for (int i = 0; i < SHARDS; ++i)
+        {
+            Shard shard = mock(Shard.class);
+            when(shard.getShardNumber()).thenReturn(i);
+            shards.add(shard);
+        }
+    }
+
+    @After
+    public void tearDown()
+    {
+        executor.shutdownNow();
+        reader.release();
+    }
+
+    @Test(timeout = 60000)
+    public void concurrentLifecycleKeepsSlotsConsistent() throws Exception
+    {
+        // Два потока на раздел: один проходит полный цикл, второй одновременно запускает тот же раздел и фиксирует.
+        CyclicBarrier start = new CyclicBarrier(THREADS);
+        List<Future<?>> tasks = new ArrayList<>();
+        for (Shard shard : shards)
+        {
+            tasks.add(executor.submit(() -> {
+                await(start);
+                for (int i = 0; i < ITERATIONS; ++i)
+                {
+                    reader.begin(BROKERS, shard, buffer, recoveryService);
+                    reader.pause(shard);
+                    reader.resume(shard);
+                    reader.setCommitOffset(shard);
+                    reader.end(shard);
+                }
+                return null;
+            }));
+            tasks.add(executor.submit(() -> {
+                await(start);
+                for (int i = 0; i < ITERATIONS; ++i)
+                {
+                    reader.begin(BROKERS, shard, buffer, recoveryService);
+                    reader.isWork(shard);
+                    reader.isCommitted(shard);
+                    reader.commit();
+                }
+                reader.end(shard);
+                return null;
+            }));
+        }
+        for (Future<?> task : tasks)
+            task.get();
+
+        for (Shard shard : shards)
+        {
+            assertFalse(reader.isWork(shard));
+            assertFalse(reader.isPaused(shard));
+        }
+        assertTrue(reader.getShardMetrics().isEmpty());
+        // Если бы место пула потерялось или занялось дважды, все 256 разделов уже не запустились бы.
+        for (Shard shard : shards)
+            reader.begin(BROKERS, shard, buffer, recoveryService);
+        int working = 0;
+        for (Shard shard : shards)
+        {
+            if (reader.isWork(shard))
+                ++working;
+        }
+        assertEquals(SHARDS, working);
+    }
+
+    private static void await(CyclicBarrier barrier)
+    {
+        try
+        {
+            barrier.await();
+        }
+        catch (Exception e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+}
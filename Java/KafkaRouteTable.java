@@ -0,0 +1,235 @@
+---
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import kafka.javaapi.producer.Producer;
+---
+import com.google.common.collect.ImmutableMap;
+import com.google.common.net.HostAndPort;
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Неизменяемый снимок маршрутов {@link KafkaWriter}: раздел временного хранилища - адрес хоста - продюсер. Любое
+ * изменение создает новый снимок, который подменяется атомарно, поэтому чтение маршрута не требует блокировок.
+ * <p>
+ * Продюсер может оставаться в нескольких снимках подряд и использоваться потоками, которые прочитали старый снимок,
+ * поэтому он закрывается по счетчику ссылок ({@link SharedProducer}), а не в момент подмены снимка.
+ * <p>
+ * <b>Synchronization</b>
+ * <p>
+ * Экземпляр данного класса является неизменяемым.
+ */
+final class KafkaRouteTable
+{
+    /**
+     * Пустая таблица маршрутов.
+     */
+    static final KafkaRouteTable EMPTY = new KafkaRouteTable(ImmutableMap.of(), ImmutableMap.of(), -1);
+
+    /**
+     * Карта, где ключ - нужный хост и раздел временного хранилища, значение - только адресс хоста(раздел не нужен).
+     */
+    private final Map<Shard, HostAndPort> routeMap;
+    /**
+     * Карта, где ключ - адрес временного хранилища, значение - продюсер.
+     */
+    private final Map<HostAndPort, SharedProducer> producersMap;
+    /**
+     * Количество разделов, для которого построена таблица, -1 - таблица строится по мере записи.
+     */
+    private final int shardsCount;
+
+    private KafkaRouteTable(Map<Shard, HostAndPort> routeMap, Map<HostAndPort, SharedProducer> producersMap,
+            int shardsCount)
+    {
+        this.routeMap = routeMap;
+        this.producersMap = producersMap;
+        this.shardsCount = shardsCount;
+    }
+
+    /**
+     * Создает таблицу для набора разделов.
+     *
+     * @param routeMap раздел - адрес временного хранилища
+     * @param producersMap адрес - продюсер, для каждого адреса из routeMap
+     * @param shardsCount количество разделов, для которого построена таблица
+     * @return таблица
+     */
+    static KafkaRouteTable of(Map<Shard, HostAndPort> routeMap, Map<HostAndPort, SharedProducer> producersMap,
+            int shardsCount)
+    {
+        checkArgument(producersMap.keySet().containsAll(routeMap.values()));
+        return new KafkaRouteTable(ImmutableMap.copyOf(routeMap), ImmutableMap.copyOf(producersMap), shardsCount);
+    }
+
+    /**
+     * Возвращает количество разделов, для которого построена таблица.
+     *
+     * @return количество разделов или -1, если таблица строится по мере записи
+     */
+    int getShardsCount()
+    {
+        return shardsCount;
+    }
+
+    /**
+     * Возвращает количество известных маршрутов.
+     *
+     * @return количество маршрутов
+     */
+    int size()
+    {
+        return routeMap.size();
+    }
+
+    /**
+     * Возвращает продюсер для раздела временного хранилища, если маршрут построен для текущего адреса приемника
+     * раздела.
+     *
+     * @param info раздел
+     * @param address текущий адрес приемника раздела
+     * @return продюсер или {@code null}, если маршрут еще не построен или адрес приемника изменился
+     */
+    SharedProducer getProducer(Shard info, HostAndPort address)
+    {
+        HostAndPort routed = routeMap.get(info);
+        return routed == null || !routed.equals(address) ? null : producersMap.get(routed);
+    }
+
+    /**
+     * Возвращает продюсер для адреса.
+     *
+     * @param address адрес временного хранилища
+     * @return продюсер или {@code null}
+     */
+    SharedProducer getProducer(HostAndPort address)
+    {
+        return producersMap.get(address);
+    }
+
+    /**
+     * Возвращает все продюсеры таблицы.
+     *
+     * @return продюсеры
+     */
+    Collection<SharedProducer> producers()
+    {
+        return producersMap.values();
+    }
+
+    /**
+     * Создает таблицу с добавленным или замененным маршрутом.
+     *
+     * @param info раздел
+     * @param address адрес временного хранилища
+     * @param producer продюсер для адреса
+     * @return новая таблица
+     */
+    KafkaRouteTable withRoute(Shard info, HostAndPort address, SharedProducer producer)
+    {
+        checkArgument(address != null);
+        checkArgument(producer != null);
+        ImmutableMap.Builder<Shard, HostAndPort> routes = ImmutableMap.builder();
+        for (Map.Entry<Shard, HostAndPort> entry : routeMap.entrySet())
+        {
+            if (!entry.getKey().equals(info))
+                routes.put(entry);
+        }
+        routes.put(info, address);
+        ImmutableMap<Shard, HostAndPort> newRoutes = routes.build();
+        ImmutableMap.Builder<HostAndPort, SharedProducer> producers = ImmutableMap.builder();
+        for (Map.Entry<HostAndPort, SharedProducer> entry : producersMap.entrySet())
+        {
+            // Продюсер адреса, на который больше не ведет ни один маршрут, в таблице не нужен.
+            if (!entry.getKey().equals(address) && newRoutes.containsValue(entry.getKey()))
+                producers.put(entry);
+        }
+        producers.put(address, producer);
+        return new KafkaRouteTable(newRoutes, producers.build(), shardsCount);
+    }
+
+    /**
+     * Создает таблицу без продюсера адреса раздела и без всех маршрутов на этот адрес.
+     *
+     * @param info раздел
+     * @return новая таблица или текущая, если маршрута нет
+     */
+    KafkaRouteTable withoutRoute(Shard info)
+    {
+        HostAndPort address = routeMap.get(info);
+        if (address == null)
+            return this;
+        ImmutableMap.Builder<Shard, HostAndPort> routes = ImmutableMap.builder();
+        for (Map.Entry<Shard, HostAndPort> entry : routeMap.entrySet())
+        {
+            if (!entry.getValue().equals(address))
+                routes.put(entry);
+        }
+        ImmutableMap.Builder<HostAndPort, SharedProducer> producers = ImmutableMap.builder();
+        for (Map.Entry<HostAndPort, SharedProducer> entry : producersMap.entrySet())
+        {
+            if (!entry.getKey().equals(address))
+                producers.put(entry);
+        }
+        return new KafkaRouteTable(routes.build(), producers.build(), shardsCount);
+    }
+
+    /**
+     * Продюсер со счетчиком ссылок. Одну ссылку держат таблицы маршрутов, пока продюсер в них есть, по одной -
+     * потоки, которые отправляют через него. Продюсер закрывается, когда ссылок не осталось.
+     * <p>
+     * <b>Synchronization</b>
+     * <p>
+     * Экземпляр данного класса является потокобезопасным.
+     */
+    static final class SharedProducer
+    {
+        private final Producer<String, byte[]> producer;
+        private final AtomicInteger references = new AtomicInteger(1);
+
+        SharedProducer(Producer<String, byte[]> producer)
+        {
+            checkArgument(producer != null);
+            this.producer = producer;
+        }
+
+        /**
+         * Захватывает продюсер для отправки.
+         *
+         * @return {@code false}, если продюсер уже выведен из таблиц и закрыт
+         */
+        boolean acquire()
+        {
+            while (true)
+            {
+                int current = references.get();
+                if (current == 0)
+                    return false;
+                if (references.compareAndSet(current, current + 1))
+                    return true;
+            }
+        }
+
+        /**
+         * Возвращает продюсер.
+         *
+         * @return продюсер, использовать только между {@link #acquire()} и {@link #release()}
+         */
+        Producer<String, byte[]> get()
+        {
+            return producer;
+        }
+
+        /**
+         * Освобождает ссылку. Вызывается после отправки и один раз при выводе продюсера из таблиц.
+         */
+        void release()
+        {
+            if (references.decrementAndGet() == 0)
+            {
+                // Судя по коду, Producer потокобезопасен.
+                producer.close();
+            }
+        }
+    }
+}
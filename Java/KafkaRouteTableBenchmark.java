@@ -0,0 +1,144 @@
+---
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import kafka.javaapi.producer.Producer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+---
+import com.google.common.net.HostAndPort;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Конкуренция за маршруты {@link KafkaWriter} при 1, 8 и 64 пишущих потоках. Сравниваются снимок
+ * {@link KafkaRouteTable}, который читается без блокировок и захватывает продюсер счетчиком ссылок, как при
+ * отправке, и прежняя схема: две карты под монитором писателя.
+ * <p>
+ * Запуск:
+ *
+ * <pre>
+ * java -jar benchmarks.jar KafkaRouteTableBenchmark
+ * </pre>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class KafkaRouteTableBenchmark
+{
+    private static final int SHARDS = 64;
+    private static final int HOSTS = 8;
+    private final Shard[] shards = new Shard[SHARDS];
+    private final HostAndPort[] addresses = new HostAndPort[SHARDS];
+    private final AtomicReference<KafkaRouteTable> routes = new AtomicReference<>(KafkaRouteTable.EMPTY);
+    private final Map<Shard, HostAndPort> routeMap = new HashMap<>();
+    private final Map<HostAndPort, Producer<String, byte[]>> producersMap = new HashMap<>();
+    private final Object lock = new Object();
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setUp()
+    {
+        Map<HostAndPort, KafkaRouteTable.SharedProducer> shared = new HashMap<>();
+        for (int i = 0; i < HOSTS; ++i)
+        {
+            HostAndPort address = HostAndPort.fromParts("kafka-" + i, 9092);
+            Producer<String, byte[]> producer = mock(Producer.class);
+            producersMap.put(address, producer);
+            shared.put(address, new KafkaRouteTable.SharedProducer(producer));
+        }
+        for (int i = 0; i < SHARDS; ++i)
+        {
+            shards[i] = mock(Shard.class);
+            addresses[i] = HostAndPort.fromParts("kafka-" + i % HOSTS, 9092);
+            routeMap.put(shards[i], addresses[i]);
+        }
+        routes.set(KafkaRouteTable.of(routeMap, shared, SHARDS));
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Producer<String, byte[]> snapshot01()
+    {
+        return snapshot();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public Producer<String, byte[]> snapshot08()
+    {
+        return snapshot();
+    }
+
+    @Benchmark
+    @Threads(64)
+    public Producer<String, byte[]> snapshot64()
+    {
+        return snapshot();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Producer<String, byte[]> synchronized01()
+    {
+        return locked();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public Producer<String, byte[]> synchronized08()
+    {
+        return locked();
+    }
+
+    @Benchmark
+    @Threads(64)
+    public Producer<String, byte[]> synchronized64()
+    {
+        return locked();
+    }
+
+    /**
+     * Путь отправки {@link KafkaWriter}: чтение снимка, проверка адреса и захват продюсера на время отправки.
+     */
+    private Producer<String, byte[]> snapshot()
+    {
+        int index = ThreadLocalRandom.current().nextInt(SHARDS);
+        KafkaRouteTable.SharedProducer producer = routes.get().getProducer(shards[index], addresses[index]);
+        if (!producer.acquire())
+            throw new IllegalStateException("Producer is closed");
+        try
+        {
+            return producer.get();
+        }
+        finally
+        {
+            producer.release();
+        }
+    }
+
+    /**
+     * Прежний путь: маршрут и продюсер под монитором писателя.
+     */
+    private Producer<String, byte[]> locked()
+    {
+        int index = ThreadLocalRandom.current().nextInt(SHARDS);
+        synchronized (lock)
+        {
+            return producersMap.get(routeMap.get(shards[index]));
+        }
+    }
+}
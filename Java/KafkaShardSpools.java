@@ -0,0 +1,156 @@
+---
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+---
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Набор локальных журналов {@link KafkaWriteSpool} для {@link KafkaWriter}, по одному на раздел временного
+ * хранилища. Недоступность одного раздела переводит в журнал только запись в этот раздел, а журналы разделов
+ * отправляются независимо друг от друга.
+ * <p>
+ * Журнал раздела хранится в подкаталоге {@code shard-<номер>} общего каталога. Сообщения, для которых раздел
+ * выбрать не удалось, пишутся в отдельный журнал {@code unrouted}. Журналы, оставшиеся после перезапуска процесса,
+ * открываются в конструкторе.
+ * <p>
+ * Вариант использования:
+ *
+ * <pre>
+ * KafkaShardSpools spools = new KafkaShardSpools(directory, 64 * 1024 * 1024);
+ * KafkaWriter kafkaWriter = new KafkaWriter.Builder(topic, writers, serializer).spool(spools).build();
+ * </pre>
+ * <p>
+ * <b>Synchronization</b>
+ * <p>
+ * Экземпляр данного класса является потокобезопасным.
+ */
+public class KafkaShardSpools implements Closeable
+{
+    /**
+     * Ключ журнала сообщений, для которых раздел выбрать не удалось.
+     */
+    public static final int UNROUTED = -1;
+    private static final String SHARD_PREFIX = "shard-";
+    private static final String UNROUTED_NAME = "unrouted";
+    private final Path directory;
+    private final int segmentSize;
+    private final ConcurrentMap<Integer, KafkaWriteSpool> spools = new ConcurrentHashMap<>();
+
+    /**
+     * Конструктор. Открывает существующие журналы каталога.
+     *
+     * @param directory каталог журналов
+     * @param segmentSize размер сегмента журнала в байтах
+     * @throws IOException при ошибке работы с файлами
+     */
+    public KafkaShardSpools(Path directory, int segmentSize) throws IOException
+    {
+        checkArgument(directory != null);
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        Files.createDirectories(directory);
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory))
+        {
+            for (Path child : stream)
+            {
+                Integer key = toKey(child.getFileName().toString());
+                if (key != null && Files.isDirectory(child))
+                    spools.put(key, new KafkaWriteSpool(child, segmentSize));
+            }
+        }
+    }
+
+    /**
+     * Возвращает журнал раздела, создавая его при необходимости.
+     *
+     * @param key номер раздела или {@link #UNROUTED}
+     * @return журнал
+     * @throws IOException при ошибке работы с файлами
+     */
+    public KafkaWriteSpool get(int key) throws IOException
+    {
+        KafkaWriteSpool spool = spools.get(key);
+        if (spool != null)
+            return spool;
+        synchronized (this)
+        {
+            spool = spools.get(key);
+            if (spool == null)
+            {
+                spool = new KafkaWriteSpool(directory.resolve(toName(key)), segmentSize);
+                spools.put(key, spool);
+            }
+            return spool;
+        }
+    }
+
+    /**
+     * Возвращает журнал раздела, если он уже создан.
+     *
+     * @param key номер раздела или {@link #UNROUTED}
+     * @return журнал или {@code null}
+     */
+    public KafkaWriteSpool find(int key)
+    {
+        return spools.get(key);
+    }
+
+    /**
+     * Проверяет, есть ли в журнале раздела неотправленные сообщения.
+     *
+     * @param key номер раздела или {@link #UNROUTED}
+     * @return {@code true}, если журнал пуст или не создан
+     */
+    public boolean isEmpty(int key)
+    {
+        KafkaWriteSpool spool = spools.get(key);
+        return spool == null || spool.isEmpty();
+    }
+
+    /**
+     * Возвращает ключи созданных журналов.
+     *
+     * @return номера разделов и, возможно, {@link #UNROUTED}
+     */
+    public List<Integer> keys()
+    {
+        return new ArrayList<>(spools.keySet());
+    }
+
+    @Override
+    public synchronized void close()
+    {
+        for (KafkaWriteSpool spool : spools.values())
+            spool.close();
+        spools.clear();
+    }
+
+    private static String toName(int key)
+    {
+        return key == UNROUTED ? UNROUTED_NAME : SHARD_PREFIX + key;
+    }
+
+    private static Integer toKey(String name)
+    {
+        if (UNROUTED_NAME.equals(name))
+            return UNROUTED;
+        if (!name.startsWith(SHARD_PREFIX))
+            return null;
+        try
+        {
+            int key = Integer.parseInt(name.substring(SHARD_PREFIX.length()));
+            return key >= 0 ? key : null;
+        }
+        catch (NumberFormatException e)
+        {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,360 @@
+---
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.zip.CRC32;
+---
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Локальный журнал упреждающей записи для {@link KafkaWriter}. Принимает сообщения, пока раздел временного
+ * хранилища недоступен, и отдает их в порядке записи для повторной отправки.
+ * <p>
+ * Журнал состоит из сегментов - файлов фиксированного размера, отображенных в память и заполняемых только
+ * дописыванием. Формат записи:
+ *
+ * <pre>
+ * ДЛИНА(4) ИДЕНТИФИКАТОР(4) CRC32(4) сообщение
+ * </pre>
+ *
+ * Нулевая длина означает конец данных сегмента. Полностью прочитанный сегмент отключается от памяти и удаляется:
+ * иначе файл занимал бы место на диске, пока буфер не собран сборщиком мусора. Позиция чтения не
+ * сохраняется, поэтому после перезапуска процесса неудаленные сегменты отправляются заново (at-least-once).
+ * <p>
+ * Вариант использования:
+ *
+ * <pre>
+ * KafkaWriteSpool spool = new KafkaWriteSpool(directory, 64 * 1024 * 1024);
+ * spool.append(id, message);
+ * List&lt;KafkaWriteSpool.Record&gt; records = spool.peek(100);
+ * ...
+ * spool.advance(records.size());
+ * </pre>
+ * <p>
+ * <b>Synchronization</b>
+ * <p>
+ * Экземпляр данного класса является потокобезопасным.
+ */
+public class KafkaWriteSpool implements Closeable
+{
+    private static final String SEGMENT_SUFFIX = ".spool";
+    private static final int HEADER_SIZE = 12;
+    private final Path directory;
+    private final int segmentSize;
+    private final Deque<Segment> segments = new ArrayDeque<>();
+    private long nextSegmentNumber;
+    /**
+     * Прочитанные, но еще не удаленные записи головного сегмента, по порядку.
+     */
+    private final List<Record> peeked = new ArrayList<>();
+
+    /**
+     * Конструктор. Открывает существующие сегменты каталога.
+     *
+     * @param directory каталог журнала
+     * @param segmentSize размер сегмента в байтах
+     * @throws IOException при ошибке работы с файлами
+     */
+    public KafkaWriteSpool(Path directory, int segmentSize) throws IOException
+    {
+        checkArgument(directory != null);
+        checkArgument(segmentSize > HEADER_SIZE);
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        Files.createDirectories(directory);
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX))
+        {
+            for (Path file : stream)
+                files.add(file);
+        }
+        Collections.sort(files);
+        for (Path file : files)
+        {
+            Segment segment = Segment.open(file);
+            segments.add(segment);
+            nextSegmentNumber = Math.max(nextSegmentNumber, segment.number + 1);
+        }
+    }
+
+    /**
+     * Дописывает сообщение в журнал.
+     *
+     * @param id условный идентификатор для распределения нагрузки
+     * @param payload сообщение
+     * @throws IOException при ошибке работы с файлами
+     */
+    public synchronized void append(int id, byte[] payload) throws IOException
+    {
+        checkArgument(payload != null && payload.length > 0);
+        Segment tail = segments.peekLast();
+        int recordSize = HEADER_SIZE + payload.length;
+        if (tail == null || tail.sealed || tail.buffer.capacity() - tail.writePosition < recordSize)
+        {
+            if (tail != null)
+                tail.buffer.force();
+            tail = Segment.create(directory.resolve(String.format("%020d%s", nextSegmentNumber, SEGMENT_SUFFIX)),
+                    nextSegmentNumber, Math.max(segmentSize, recordSize));
+            ++nextSegmentNumber;
+            segments.add(tail);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        MappedByteBuffer buffer = tail.buffer;
+        int position = tail.writePosition;
+        // Длина пишется последней, чтобы незавершенная запись выглядела как конец данных.
+        buffer.putInt(position + 4, id);
+        buffer.putInt(position + 8, (int)crc.getValue());
+        ByteBuffer target = buffer.duplicate();
+        target.position(position + HEADER_SIZE);
+        target.put(payload);
+        buffer.putInt(position, payload.length);
+        tail.writePosition = position + recordSize;
+    }
+
+    /**
+     * Проверяет, есть ли в журнале неотправленные сообщения.
+     *
+     * @return {@code true}, если журнал пуст
+     */
+    public synchronized boolean isEmpty()
+    {
+        for (Segment segment : segments)
+        {
+            if (segment.readPosition < segment.writePosition)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Возвращает самые старые неотправленные сообщения, не удаляя их из журнала. Сообщения берутся из одного
+     * сегмента, поэтому их может оказаться меньше запрошенного, даже если журнал содержит больше.
+     *
+     * @param maxRecords максимальное количество сообщений
+     * @return записи в порядке записи, пустой список - если журнал пуст
+     */
+    public synchronized List<Record> peek(int maxRecords)
+    {
+        checkArgument(maxRecords > 0);
+        Segment head = segments.peekFirst();
+        if (peeked.isEmpty())
+        {
+            while (head != null && head.readPosition >= head.writePosition && head != segments.peekLast())
+            {
+                discard(segments.pollFirst());
+                head = segments.peekFirst();
+            }
+        }
+        if (head == null)
+            return Collections.emptyList();
+        int position = head.readPosition;
+        for (Record record : peeked)
+            position += record.size;
+        MappedByteBuffer buffer = head.buffer;
+        while (peeked.size() < maxRecords && position < head.writePosition)
+        {
+            int length = buffer.getInt(position);
+            byte[] payload = new byte[length];
+            ByteBuffer source = buffer.duplicate();
+            source.position(position + HEADER_SIZE);
+            source.get(payload);
+            peeked.add(new Record(buffer.getInt(position + 4), payload, HEADER_SIZE + length));
+            position += HEADER_SIZE + length;
+        }
+        return new ArrayList<>(peeked.subList(0, Math.min(maxRecords, peeked.size())));
+    }
+
+    /**
+     * Удаляет из журнала первые сообщения, полученные вызовом {@link #peek(int)}.
+     *
+     * @param count количество сообщений
+     */
+    public synchronized void advance(int count)
+    {
+        checkArgument(count >= 0 && count <= peeked.size());
+        if (count == 0)
+            return;
+        List<Record> sent = peeked.subList(0, count);
+        for (Record record : sent)
+            segments.peekFirst().readPosition += record.size;
+        sent.clear();
+    }
+
+    @Override
+    public synchronized void close()
+    {
+        for (Segment segment : segments)
+        {
+            segment.buffer.force();
+            unmap(segment.buffer);
+        }
+        segments.clear();
+        peeked.clear();
+    }
+
+    private void discard(Segment segment)
+    {
+        unmap(segment.buffer);
+        try
+        {
+            Files.deleteIfExists(segment.file);
+        }
+        catch (IOException e)
+        {
+            // Сегмент будет отправлен повторно после перезапуска, это допустимо.
+        }
+    }
+
+    /**
+     * Освобождает отображение сегмента сразу, не дожидаясь сборки мусора. После вызова обращаться к буферу нельзя,
+     * поэтому записи отдаются наружу только копиями. Если освободить не удалось, отображение освободит сборщик
+     * мусора.
+     */
+    private static void unmap(MappedByteBuffer buffer)
+    {
+        try
+        {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner;
+            try
+            {
+                invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            }
+            catch (NoSuchMethodException e)
+            {
+                // Java 8.
+                Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buffer);
+                if (cleaner != null)
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+                return;
+            }
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), buffer);
+        }
+        catch (ReflectiveOperationException | RuntimeException e)
+        {
+            // Отображение освободит сборщик мусора.
+        }
+    }
+
+    /**
+     * Запись журнала.
+     */
+    public static final class Record
+    {
+        private final int id;
+        private final byte[] payload;
+        private final int size;
+
+        private Record(int id, byte[] payload, int size)
+        {
+            this.id = id;
+            this.payload = payload;
+            this.size = size;
+        }
+
+        /**
+         * Возвращает условный идентификатор для распределения нагрузки.
+         *
+         * @return идентификатор
+         */
+        public int getId()
+        {
+            return id;
+        }
+
+        /**
+         * Возвращает сообщение.
+         *
+         * @return сообщение
+         */
+        public byte[] getPayload()
+        {
+            return payload;
+        }
+    }
+
+    private static final class Segment
+    {
+        private final Path file;
+        private final long number;
+        private final MappedByteBuffer buffer;
+        private int writePosition;
+        private int readPosition;
+        /**
+         * Дописывать в восстановленный сегмент нельзя: после поврежденной записи могут остаться старые данные.
+         */
+        private boolean sealed;
+
+        private Segment(Path file, long number, MappedByteBuffer buffer)
+        {
+            this.file = file;
+            this.number = number;
+            this.buffer = buffer;
+        }
+
+        private static Segment create(Path file, long number, int size) throws IOException
+        {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE))
+            {
+                return new Segment(file, number, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+            }
+        }
+
+        private static Segment open(Path file) throws IOException
+        {
+            String name = file.getFileName().toString();
+            long number = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE))
+            {
+                Segment segment = new Segment(file, number, channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                        channel.size()));
+                segment.recover();
+                return segment;
+            }
+        }
+
+        /**
+         * Находит конец корректных данных: нулевую длину, выход за границы сегмента или несовпадение CRC.
+         */
+        private void recover()
+        {
+            int position = 0;
+            int capacity = buffer.capacity();
+            while (position + HEADER_SIZE <= capacity)
+            {
+                int length = buffer.getInt(position);
+                if (length <= 0 || length > capacity - position - HEADER_SIZE)
+                    break;
+                ByteBuffer record = buffer.duplicate();
+                record.position(position + HEADER_SIZE);
+                record.limit(position + HEADER_SIZE + length);
+                CRC32 crc = new CRC32();
+                crc.update(record);
+                if ((int)crc.getValue() != buffer.getInt(position + 8))
+                    break;
+                position += HEADER_SIZE + length;
+            }
+            writePosition = position;
+            sealed = true;
+        }
+    }
+}
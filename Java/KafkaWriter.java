@@ -1,15 +1,32 @@
 ---
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Set;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 ---
 import com.google.common.net.HostAndPort;
 import kafka.common.FailedToSendMessageException;
 import kafka.common.KafkaException;
 import kafka.common.KafkaStorageException;
 import kafka.common.ReplicaNotAvailableException;
+import kafka.javaapi.TopicMetadataRequest;
+import kafka.javaapi.consumer.SimpleConsumer;
 import kafka.javaapi.producer.Producer;
 import kafka.producer.KeyedMessage;
 import kafka.producer.ProducerConfig;
@@ -24,28 +41,119 @@ import static com.google.common.base.Preconditions.checkArgument;
  * <pre>
  * </pre>
  * <p>
+ * Если задан {@link KafkaBatchConfig}, то {@link #writeEventsAsync(ClusterEvents, int)} накапливает сообщения в
+ * пакеты по разделам и отправляет каждый пакет одним запросом. Готовые пакеты отправляются пулом потоков отправки
+ * (см. {@link Builder#senderThreads(int)}), поэтому вызывающий поток не ждет сеть. Возвращаемый future завершается
+ * после подтверждения отправки пакета, в который попали события:
+ *
+ * <pre>
+ * KafkaWriter kafkaWriter = new KafkaWriter(topic, writers, serializer, batchConfig);
+ * kafkaWriter.writeEventsAsync(events, id).thenAccept(...);
+ * </pre>
+ * <p>
+ * Дополнительные режимы задаются через {@link Builder}:
+ *
+ * <pre>
+ * KafkaWriter kafkaWriter = new KafkaWriter.Builder(topic, writers, new ClusterEventsBinaryCodec())
+ *         .batchConfig(batchConfig).spool(spools).shardPolicy(policy).build();
+ * </pre>
+ * <p>
+ * Если заданы {@link KafkaShardSpools}, то при недоступности раздела сообщения записываются в локальный журнал
+ * этого раздела, а фоновые задачи отправляют журналы разделов независимо, пакетами и по порядку, как только маршрут
+ * восстановится. Сообщение пишется в журнал раздела, который {@link WritersSelector} назначает его идентификатору,
+ * даже если политика выбора отправила его в другой раздел. Пока этот журнал не пуст, новые сообщения с такими
+ * идентификаторами также пишутся в него, куда бы их ни направила политика, чтобы не нарушить порядок событий.
+ * Запись остальных идентификаторов идет напрямую.
+ * <p>
+ * Если задана {@link LatencyAwareShardPolicy}, то идентификаторы, попадающие в деградировавший раздел, переводятся
+ * на исправный раздел до его восстановления. Восстановление раздела проверяется запросом метаданных топика, а не
+ * записью событий.
+ * <p>
+ * Если задан {@link InFlightBudget}, то {@link #tryWrite(ClusterEvents, int)} и
+ * {@link #writeWithDeadline(ClusterEvents, int, long, TimeUnit)} не ждут продюсер при перегрузке раздела, а
+ * возвращают явный отказ {@link WriteResult} с рекомендацией, через сколько повторить попытку.
+ * <p>
  * <b>Synchronization</b>
  * <p>
- * Экземпляр данного класса является потокобезопасным.
+ * Экземпляр данного класса является потокобезопасным. Маршруты хранятся в неизменяемом снимке
+ * {@link KafkaRouteTable}, поэтому запись событий не захватывает монитор, пока топология не меняется. Маршрут
+ * раздела сверяется с текущим адресом его приемника при каждой записи, поэтому смена адреса подхватывается и без
+ * изменения количества разделов. При изменении топологии таблица перестраивается инкрементально: подключаются только
+ * новые адреса, а продюсер адреса, выведенного из таблицы, закрывается, когда его отпустит последний поток отправки.
  *
  */
 public class KafkaWriter implements IKafkaWriter
 {
+    private static final Logger LOGGER = LoggerFactory.getLogger(KafkaWriter.class);
+    /**
+     * Период отправки сообщений из локального журнала, в секундах.
+     */
+    private static final int SPOOL_DRAIN_PERIOD = 1;
+    /**
+     * Максимальное количество сообщений журнала в одном запросе отправки.
+     */
+    private static final int SPOOL_DRAIN_BATCH = 500;
+    /**
+     * Количество потоков отправки пакетов по умолчанию.
+     */
+    private static final int DEFAULT_SENDER_THREADS = 4;
+    /**
+     * Период проверки деградировавших разделов, в миллисекундах.
+     */
+    private static final int PROBE_PERIOD = 250;
+    private static final int PROBE_SO_TIMEOUT = 5000;
+    private static final int PROBE_BUFFER_SIZE = 64 * 1024;
+    private static final String PROBE_CLIENT_ID = "KafkaWriterProbe";
+    /**
+     * Время ожидания фоновых задач при закрытии, в секундах.
+     */
+    private static final int CLOSE_TIMEOUT = 30;
     private static final String NAME_SERIALIZER_CLASS = "serializer.class";
-    private static final String SERIALIZER_CLASS = "kafka.serializer.StringEncoder";
+    private static final String SERIALIZER_CLASS = "kafka.serializer.DefaultEncoder";
+    private static final String NAME_KEY_SERIALIZER_CLASS = "key.serializer.class";
+    private static final String KEY_SERIALIZER_CLASS = "kafka.serializer.StringEncoder";
     private static final String NAME_BROKER_LIST = "metadata.broker.list";
-    private final ISerializer serializer;
+    private final IBinarySerializer serializer;
 
     /**
-     * Карта, где ключ - нужный хост и раздел временного хранилища, значение - только адресс хоста(раздел не нужен).
-     */
-    private final Map<Shard, String> routeMap = new HashMap<>();
-    /**
-     * Карта, где ключ - адрес временного хранилища, значение - продюсер.
+     * Текущий снимок маршрутов. Читается без блокировок, изменяется только под монитором экземпляра.
      */
-    private final Map<String, Producer<String, String>> producersMap = new HashMap<>();
+    private final AtomicReference<KafkaRouteTable> routeTable = new AtomicReference<>(KafkaRouteTable.EMPTY);
     private final String topic;
     private final WritersSelector writers;
+    /**
+     * Накопитель пакетов, {@code null} - если пакетная отправка не используется.
+     */
+    private final KafkaBatchAccumulator accumulator;
+    /**
+     * Отправляет готовые пакеты, {@code null} - если пакетная отправка не используется.
+     */
+    private final ExecutorService senders;
+    /**
+     * Локальные журналы разделов на время их недоступности, {@code null} - если не используются.
+     */
+    private final KafkaShardSpools spools;
+    /**
+     * Отправляет журналы разделов, {@code null} - если журналы не используются.
+     */
+    private final ExecutorService drainers;
+    /**
+     * Ключи журналов, отправка которых уже выполняется.
+     */
+    private final Set<Integer> draining = ConcurrentHashMap.newKeySet();
+    /**
+     * Закрывает пакеты, время ожидания которых истекло, и отправляет сообщения из локального журнала. {@code null} -
+     * если не используются ни пакетная отправка, ни журнал.
+     */
+    private final ScheduledExecutorService scheduler;
+    /**
+     * Политика выбора раздела с учетом задержек, {@code null} - раздел выбирает только {@link WritersSelector}.
+     */
+    private final LatencyAwareShardPolicy shardPolicy;
+    /**
+     * Бюджет байтов в полете по разделам, {@code null} - запись не ограничивается.
+     */
+    private final InFlightBudget inFlightBudget;
 
     /**
      * Конструктор.
@@ -56,17 +164,66 @@ public class KafkaWriter implements IKafkaWriter
      */
     public KafkaWriter(String topic, WritersSelector writers, ISerializer serializer)
     {
-        checkArgument(topic != null);
-        checkArgument(writers != null);
-        checkArgument(serializer != null);
-        this.serializer = serializer;
-        this.topic = topic;
-        this.writers = writers;
+        this(topic, writers, serializer, null);
+    }
+
+    /**
+     * Конструктор.
+     * 
+     * @param topic топик
+     * @param writers селектор разделов временного хранилища
+     * @param serializer сериализатор
+     * @param batchConfig настройки пакетной отправки, {@code null} - пакетная отправка не используется
+     */
+    public KafkaWriter(String topic, WritersSelector writers, ISerializer serializer, KafkaBatchConfig batchConfig)
+    {
+        this(new Builder(topic, writers, serializer).batchConfig(batchConfig));
+    }
+
+    private KafkaWriter(Builder builder)
+    {
+        this.serializer = builder.serializer;
+        this.topic = builder.topic;
+        this.writers = builder.writers;
+        this.spools = builder.spools;
+        this.shardPolicy = builder.shardPolicy;
+        this.inFlightBudget = builder.inFlightBudget;
+        KafkaBatchConfig batchConfig = builder.batchConfig;
+        this.accumulator = batchConfig != null ? new KafkaBatchAccumulator(batchConfig) : null;
+        this.senders = batchConfig != null ? Executors.newFixedThreadPool(builder.senderThreads,
+                new DefaultThreadFactory("KafkaWriterSender")) : null;
+        this.drainers = spools != null ? Executors.newFixedThreadPool(builder.senderThreads,
+                new DefaultThreadFactory("KafkaWriterSpool")) : null;
+        if (batchConfig != null || spools != null || shardPolicy != null)
+            this.scheduler = new ScheduledThreadPoolExecutor(1, new DefaultThreadFactory("KafkaWriter"));
+        else
+            this.scheduler = null;
+        if (batchConfig != null)
+            this.scheduler.scheduleWithFixedDelay(this::flushExpired, batchConfig.getLingerNanos(),
+                    batchConfig.getLingerNanos(), TimeUnit.NANOSECONDS);
+        if (spools != null)
+            this.scheduler.scheduleWithFixedDelay(this::drainSpools, SPOOL_DRAIN_PERIOD, SPOOL_DRAIN_PERIOD,
+                    TimeUnit.SECONDS);
+        if (shardPolicy != null)
+            this.scheduler.scheduleWithFixedDelay(() -> shardPolicy.probeDegraded(this::probe), PROBE_PERIOD,
+                    PROBE_PERIOD, TimeUnit.MILLISECONDS);
     }
 
     @Override
     public void close()
     {
+        // Фоновые задачи должны завершиться до закрытия журнала и продюсеров, иначе они запишут в закрытый журнал
+        // или создадут продюсер, который уже некому закрыть.
+        if (scheduler != null)
+            awaitTermination(scheduler);
+        if (senders != null)
+            awaitTermination(senders);
+        if (drainers != null)
+            awaitTermination(drainers);
+        if (accumulator != null)
+            flush(accumulator.sealAll());
+        if (spools != null)
+            spools.close();
         cleanProducers();
     }
 
@@ -77,71 +234,699 @@ public class KafkaWriter implements IKafkaWriter
         List<IssuedEvent> listEvent = events.getEvents();
         if (!listEvent.isEmpty())
         {
-            Shard info = writers.selectShard(id);
+            byte[] eventSerialized = serialize(events);
+            sendOrSpool(selectShard(id), id, eventSerialized);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Асинхронно сохраняет события во временном хранилище. Если пакетная отправка не используется, то запись
+     * выполняется синхронно, как в {@link #writeEvents(ClusterEvents, int)}.
+     * 
+     * @param events события
+     * @param id условный идентификатор для распределения нагрузки
+     * @return future, который завершается значением {@code true} после подтверждения отправки пакета,
+     *         {@code false} - если событий нет, или исключением {@link KafkaException} при ошибке записи
+     */
+    public CompletableFuture<Boolean> writeEventsAsync(ClusterEvents events, int id)
+    {
+        CompletableFuture<Boolean> future = new CompletableFuture<>();
+        checkRoute();
+        List<IssuedEvent> listEvent = events.getEvents();
+        if (listEvent.isEmpty())
+        {
+            future.complete(false);
+            return future;
+        }
+        try
+        {
+            byte[] eventSerialized = serialize(events);
+            enqueue(selectShard(id), id, eventSerialized, listEvent.size(), future);
+        }
+        catch (KafkaException e)
+        {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Сохраняет события во временном хранилище, если у раздела есть свободный бюджет байтов в полете (см.
+     * {@link Builder#inFlightBudget(InFlightBudget)}). Не блокирует вызывающий поток в ожидании бюджета.
+     * 
+     * @param events события
+     * @param id условный идентификатор для распределения нагрузки
+     * @return принятые события с future подтверждения (как в {@link #writeEventsAsync(ClusterEvents, int)}) или
+     *         отказ с рекомендацией, через сколько повторить попытку
+     * @throws KafkaException при ошибке сериализации или записи
+     */
+    public WriteResult tryWrite(ClusterEvents events, int id) throws KafkaException
+    {
+        return write(events, id, false, 0);
+    }
+
+    /**
+     * Сохраняет события во временном хранилище, ожидая свободный бюджет байтов в полете раздела не дольше заданного
+     * срока.
+     * 
+     * @param events события
+     * @param id условный идентификатор для распределения нагрузки
+     * @param timeout максимальное время ожидания бюджета
+     * @param unit единица измерения времени ожидания
+     * @return принятые события с future подтверждения или отказ с рекомендацией, через сколько повторить попытку
+     * @throws KafkaException при ошибке сериализации или записи
+     */
+    public WriteResult writeWithDeadline(ClusterEvents events, int id, long timeout, TimeUnit unit)
+            throws KafkaException
+    {
+        checkArgument(unit != null);
+        return write(events, id, true, System.nanoTime() + unit.toNanos(timeout));
+    }
+
+    private WriteResult write(ClusterEvents events, int id, boolean wait, long deadlineNanos) throws KafkaException
+    {
+        checkRoute();
+        CompletableFuture<Boolean> future = new CompletableFuture<>();
+        List<IssuedEvent> listEvent = events.getEvents();
+        if (listEvent.isEmpty())
+        {
+            future.complete(false);
+            return WriteResult.accepted(future);
+        }
+        byte[] eventSerialized = serialize(events);
+        Shard info = selectShard(id);
+        // Запись в локальный журнал не занимает продюсер, поэтому бюджетом не ограничивается.
+        if (info != null && inFlightBudget != null && !isSpooling(id))
+        {
+            int bytes = eventSerialized.length;
+            boolean acquired;
             try
             {
-                if (info == null)
-                    throw new KafkaException(Messages.not_available());
-                Producer<String, String> producer = getProducer(info);
-                String  eventSerialized = serializer.serialize(events);
-                producer.send(new KeyedMessage<String, String>(topic, String.valueOf(info.getShardNumber()), eventSerialized));
+                acquired = wait ? inFlightBudget.acquire(info, bytes, deadlineNanos)
+                        : inFlightBudget.tryAcquire(info, bytes);
             }
-            catch (SerializeException e)
+            catch (InterruptedException e)
             {
+                Thread.currentThread().interrupt();
+                acquired = false;
+            }
+            if (!acquired)
+                return WriteResult.rejected(inFlightBudget.retryAfterNanos(info, bytes));
+            future.whenComplete((result, e) -> inFlightBudget.release(info, bytes));
+        }
+        try
+        {
+            enqueue(info, id, eventSerialized, listEvent.size(), future);
+        }
+        catch (KafkaException e)
+        {
+            future.completeExceptionally(e);
+            throw e;
+        }
+        return WriteResult.accepted(future);
+    }
+
+    private void enqueue(Shard info, int id, byte[] eventSerialized, int events, CompletableFuture<Boolean> future)
+            throws KafkaException
+    {
+        if (info == null || accumulator == null || isSpooling(id))
+        {
+            sendOrSpool(info, id, eventSerialized);
+            future.complete(true);
+            return;
+        }
+        KafkaBatchAccumulator.ShardBatches ready = accumulator.append(info, id, new KeyedMessage<String, byte[]>(
+                topic, String.valueOf(info.getShardNumber()), eventSerialized), eventSerialized.length, events,
+                future);
+        if (ready != null)
+            schedule(ready);
+    }
+
+    private void sendOrSpool(Shard info, int id, byte[] eventSerialized) throws KafkaException
+    {
+        if (isSpooling(id))
+        {
+            toSpool(id, eventSerialized);
+            return;
+        }
+        try
+        {
+            if (info == null)
+                throw new KafkaException(Messages.not_available());
+            send(info, Collections.singletonList(new KeyedMessage<String, byte[]>(topic,
+                    String.valueOf(info.getShardNumber()), eventSerialized)));
+        }
+        catch (KafkaStorageException | FailedToSendMessageException | ReplicaNotAvailableException e)
+        {
+            removeProducer(info);
+            if (spools == null)
                 throw new KafkaException(Messages.failed_write_to_storage(), e);
+            toSpool(id, eventSerialized);
+        }
+        catch (KafkaException e)
+        {
+            if (spools == null)
+                throw e;
+            toSpool(id, eventSerialized);
+        }
+    }
+
+    private byte[] serialize(ClusterEvents events) throws KafkaException
+    {
+        try
+        {
+            return serializer.serialize(events);
+        }
+        catch (SerializeException e)
+        {
+            throw new KafkaException(Messages.failed_write_to_storage(), e);
+        }
+    }
+
+    private Shard selectShard(int id)
+    {
+        return shardPolicy != null ? shardPolicy.select(writers, id) : writers.selectShard(id);
+    }
+
+    private void send(Shard info, List<KeyedMessage<String, byte[]>> messages)
+    {
+        long start = System.nanoTime();
+        boolean success = false;
+        try
+        {
+            KafkaRouteTable.SharedProducer producer = acquireProducer(info);
+            try
+            {
+                producer.get().send(messages);
             }
-            catch (KafkaStorageException | FailedToSendMessageException | ReplicaNotAvailableException e)
+            finally
             {
-                removeProducer(info);
-                throw new KafkaException(Messages.failed_write_to_storage(), e);
+                producer.release();
             }
-            return true;
+            success = true;
+        }
+        finally
+        {
+            if (shardPolicy != null)
+                shardPolicy.record(info, System.nanoTime() - start, success);
+        }
+    }
+
+    /**
+     * Проверяет, должна ли запись идентификатора идти в локальный журнал, чтобы не обогнать уже записанные туда
+     * сообщения. Журнал выбирается по разделу, который идентификатору назначает {@link WritersSelector}, а не
+     * политика выбора: иначе перевод идентификатора на другой раздел обходил бы его журнал.
+     */
+    private boolean isSpooling(int id)
+    {
+        if (spools == null)
+            return false;
+        return !spools.isEmpty(KafkaShardSpools.UNROUTED) || !spools.isEmpty(spoolKey(id));
+    }
+
+    private boolean isSpooling(List<Integer> ids)
+    {
+        if (spools == null)
+            return false;
+        for (Integer id : ids)
+        {
+            if (isSpooling(id))
+                return true;
         }
         return false;
     }
 
-    private synchronized void checkRoute()
+    /**
+     * Возвращает ключ журнала идентификатора: номер раздела, назначенного ему {@link WritersSelector}.
+     */
+    private int spoolKey(int id)
+    {
+        Shard home = writers.selectShard(id);
+        return home == null ? KafkaShardSpools.UNROUTED : home.getShardNumber();
+    }
+
+    private void toSpool(int id, byte[] eventSerialized) throws KafkaException
+    {
+        try
+        {
+            spools.get(spoolKey(id)).append(id, eventSerialized);
+        }
+        catch (IOException e)
+        {
+            throw new KafkaException(Messages.failed_write_to_storage(), e);
+        }
+    }
+
+    /**
+     * Запускает отправку непустых журналов разделов. Журнал раздела отправляет один поток за раз.
+     */
+    private void drainSpools()
+    {
+        for (Integer key : spools.keys())
+        {
+            if (spools.isEmpty(key) || !draining.add(key))
+                continue;
+            try
+            {
+                drainers.execute(() -> drainSpool(key));
+            }
+            catch (RejectedExecutionException e)
+            {
+                // Писатель закрывается.
+                draining.remove(key);
+                return;
+            }
+        }
+    }
+
+    private void drainSpool(int key)
+    {
+        // Сообщения без раздела старше сообщений, записанных в журналы разделов после них, поэтому уходят первыми.
+        if (key != KafkaShardSpools.UNROUTED && !spools.isEmpty(KafkaShardSpools.UNROUTED))
+        {
+            draining.remove(key);
+            return;
+        }
+        try
+        {
+            KafkaWriteSpool spool = spools.find(key);
+            List<KafkaWriteSpool.Record> records;
+            while (spool != null && !(records = spool.peek(SPOOL_DRAIN_BATCH)).isEmpty())
+            {
+                checkRoute();
+                Shard info = selectShard(records.get(0).getId());
+                if (info == null)
+                    return;
+                // В один запрос попадают идущие подряд сообщения одного раздела.
+                List<KeyedMessage<String, byte[]>> messages = new ArrayList<>(records.size());
+                String partitionKey = String.valueOf(info.getShardNumber());
+                for (KafkaWriteSpool.Record record : records)
+                {
+                    if (!messages.isEmpty() && !info.equals(selectShard(record.getId())))
+                        break;
+                    messages.add(new KeyedMessage<String, byte[]>(topic, partitionKey, record.getPayload()));
+                }
+                try
+                {
+                    send(info, messages);
+                }
+                catch (KafkaStorageException | FailedToSendMessageException | ReplicaNotAvailableException e)
+                {
+                    removeProducer(info);
+                    LOGGER.trace("Spooled message is not sent yet.", e);
+                    return;
+                }
+                spool.advance(messages.size());
+            }
+        }
+        catch (RuntimeException e)
+        {
+            LOGGER.warn(Messages.failed_drain_spool(e.getMessage()));
+            LOGGER.trace("Spool drain exception.", e);
+        }
+        finally
+        {
+            draining.remove(key);
+        }
+    }
+
+    /**
+     * Проверяет раздел запросом метаданных топика к его приемнику.
+     */
+    private boolean probe(Shard info)
+    {
+        HostAndPort hap = info.getReceiver().getAddress();
+        if (hap == null)
+            return false;
+        SimpleConsumer consumer = new SimpleConsumer(hap.getHostText(), hap.getPort(), PROBE_SO_TIMEOUT,
+                PROBE_BUFFER_SIZE, PROBE_CLIENT_ID);
+        try
+        {
+            consumer.send(new TopicMetadataRequest(Collections.singletonList(topic)));
+            return true;
+        }
+        finally
+        {
+            consumer.close();
+        }
+    }
+
+    private void flushExpired()
+    {
+        for (KafkaBatchAccumulator.ShardBatches batches : accumulator.expire(System.nanoTime()))
+            schedule(batches);
+    }
+
+    /**
+     * Передает отправку готовых пакетов раздела потоку отправки, если она еще не запланирована.
+     */
+    private void schedule(KafkaBatchAccumulator.ShardBatches batches)
+    {
+        if (!batches.trySchedule())
+            return;
+        try
+        {
+            senders.execute(() -> sendReady(batches));
+        }
+        catch (RejectedExecutionException e)
+        {
+            // Писатель закрывается: отправляем в вызывающем потоке.
+            batches.unschedule();
+            flush(batches);
+        }
+    }
+
+    private void sendReady(KafkaBatchAccumulator.ShardBatches batches)
+    {
+        do
+        {
+            flush(batches);
+            batches.unschedule();
+        }
+        while (batches.hasReady() && batches.trySchedule());
+    }
+
+    private void flush(List<KafkaBatchAccumulator.ShardBatches> ready)
+    {
+        for (KafkaBatchAccumulator.ShardBatches batches : ready)
+            flush(batches);
+    }
+
+    private void flush(KafkaBatchAccumulator.ShardBatches batches)
+    {
+        // Готовые пакеты раздела отправляются строго по очереди, чтобы не нарушить порядок событий.
+        synchronized (batches.sendLock())
+        {
+            KafkaBatchAccumulator.Batch batch;
+            while ((batch = batches.pollReady()) != null)
+                sendBatch(batches.getShard(), batch);
+        }
+    }
+
+    private void sendBatch(Shard info, KafkaBatchAccumulator.Batch batch)
+    {
+        try
+        {
+            // Пакет не должен обогнать сообщения своих идентификаторов, уже записанные в журнал.
+            if (isSpooling(batch.getIds()))
+            {
+                spoolBatch(batch);
+                return;
+            }
+            send(info, batch.getMessages());
+            batch.complete();
+        }
+        catch (KafkaStorageException | FailedToSendMessageException | ReplicaNotAvailableException e)
+        {
+            removeProducer(info);
+            if (spools == null)
+            {
+                batch.fail(new KafkaException(Messages.failed_write_to_storage(), e));
+                return;
+            }
+            spoolBatch(batch);
+        }
+        // Ожидающих нельзя оставлять без ответа, в т.ч. при неожиданной ошибке.
+        catch (RuntimeException e)
+        {
+            batch.fail(new KafkaException(Messages.failed_write_to_storage(), e));
+        }
+    }
+
+    private void spoolBatch(KafkaBatchAccumulator.Batch batch)
+    {
+        try
+        {
+            List<Integer> ids = batch.getIds();
+            List<KeyedMessage<String, byte[]>> messages = batch.getMessages();
+            for (int i = 0; i < messages.size(); ++i)
+                toSpool(ids.get(i), messages.get(i).message());
+            batch.complete();
+        }
+        catch (KafkaException e)
+        {
+            batch.fail(e);
+        }
+    }
+
+    private void checkRoute()
     {
-        if (!VerifyRoute.verify(routeMap.size(), writers.getShardsCount()))
-            cleanProducers();
+        KafkaRouteTable table = routeTable.get();
+        int shardsCount = writers.getShardsCount();
+        if (table.getShardsCount() != shardsCount && !VerifyRoute.verify(table.size(), shardsCount))
+            rebuildRoute(table);
+    }
+
+    /**
+     * Перестраивает маршруты после изменения количества разделов. Продюсеры сохранившихся адресов переиспользуются,
+     * продюсеры новых адресов создаются до того, как на них пойдет запись. Таблица заполняется разделами, которые
+     * {@link WritersSelector#selectShard(int)} выдает для идентификаторов от 0 до количества разделов; маршруты
+     * остальных разделов строятся при первой записи в них.
+     */
+    private synchronized void rebuildRoute(KafkaRouteTable expected)
+    {
+        // Таблицу мог уже перестроить другой поток.
+        if (routeTable.get() != expected)
+            return;
+        int shardsCount = writers.getShardsCount();
+        Map<Shard, HostAndPort> routes = new HashMap<>();
+        for (int i = 0; i < shardsCount; ++i)
+        {
+            Shard info = writers.selectShard(i);
+            HostAndPort hap = info == null ? null : info.getReceiver().getAddress();
+            if (hap != null)
+                routes.put(info, hap);
+        }
+        Map<HostAndPort, KafkaRouteTable.SharedProducer> producers = new HashMap<>();
+        for (HostAndPort address : routes.values())
+        {
+            if (!producers.containsKey(address))
+            {
+                KafkaRouteTable.SharedProducer producer = expected.getProducer(address);
+                producers.put(address, producer != null ? producer : new KafkaRouteTable.SharedProducer(
+                        createProducer(address.toString())));
+            }
+        }
+        publish(KafkaRouteTable.of(routes, producers, shardsCount));
     }
 
     private synchronized void removeProducer(Shard info)
     {
         if (info == null)
             return;
-        String address = routeMap.get(info);
-        if (address == null)
+        publish(routeTable.get().withoutRoute(info));
+    }
+
+    /**
+     * Подменяет таблицу маршрутов и освобождает ссылку таблиц на продюсеры, которых в новой таблице нет. Такой
+     * продюсер закрывается, как только завершатся отправки через него.
+     */
+    private synchronized void publish(KafkaRouteTable table)
+    {
+        KafkaRouteTable previous = routeTable.getAndSet(table);
+        if (previous == table)
             return;
-        producersMap.remove(address);
-        routeMap.remove(info);
+        for (KafkaRouteTable.SharedProducer producer : previous.producers())
+        {
+            if (!table.producers().contains(producer))
+                producer.release();
+        }
     }
 
-    private synchronized Producer<String, String> getProducer(Shard info)
+    /**
+     * Захватывает продюсер раздела для отправки. После отправки продюсер нужно освободить.
+     */
+    private KafkaRouteTable.SharedProducer acquireProducer(Shard info)
     {
         HostAndPort hap = info.getReceiver().getAddress();
         checkArgument(hap != null, "Address can not be null");
-        String address = routeMap.computeIfAbsent(info, v -> hap.toString());
-        return producersMap.computeIfAbsent(hap.toString(), v -> createProducer(address));
+        while (true)
+        {
+            KafkaRouteTable.SharedProducer producer = routeTable.get().getProducer(info, hap);
+            if (producer == null)
+                producer = addRoute(info, hap);
+            // Продюсер мог быть выведен из таблицы и закрыт после чтения снимка - тогда берем новый снимок.
+            if (producer.acquire())
+                return producer;
+        }
+    }
+
+    private synchronized KafkaRouteTable.SharedProducer addRoute(Shard info, HostAndPort hap)
+    {
+        KafkaRouteTable table = routeTable.get();
+        KafkaRouteTable.SharedProducer producer = table.getProducer(info, hap);
+        if (producer != null)
+            return producer;
+        producer = table.getProducer(hap);
+        if (producer == null)
+            producer = new KafkaRouteTable.SharedProducer(createProducer(hap.toString()));
+        publish(table.withRoute(info, hap, producer));
+        return producer;
     }
 
-    private Producer<String, String> createProducer(String broker)
+    private Producer<String, byte[]> createProducer(String broker)
     {
         Properties kafkaProducerConfig = new Properties();
         kafkaProducerConfig.put(NAME_SERIALIZER_CLASS, SERIALIZER_CLASS);
+        kafkaProducerConfig.put(NAME_KEY_SERIALIZER_CLASS, KEY_SERIALIZER_CLASS);
         kafkaProducerConfig.put(NAME_BROKER_LIST, broker);
-        return new Producer<String, String>(new ProducerConfig(kafkaProducerConfig));
+        return new Producer<String, byte[]>(new ProducerConfig(kafkaProducerConfig));
     }
 
     private synchronized void cleanProducers()
     {
-        for (Entry<String, Producer<String, String>> entry : producersMap.entrySet())
+        publish(KafkaRouteTable.EMPTY);
+    }
+
+    private static void awaitTermination(ExecutorService executor)
+    {
+        executor.shutdown();
+        try
         {
-            // Судя по коду, Producer потокобезопасен.
-            entry.getValue().close();
+            if (!executor.awaitTermination(CLOSE_TIMEOUT, TimeUnit.SECONDS))
+                LOGGER.warn(Messages.close_timeout(CLOSE_TIMEOUT));
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static IBinarySerializer toBinary(ISerializer serializer)
+    {
+        checkArgument(serializer != null);
+        return events -> serializer.serialize(events).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * <code>Builder</code> билдер писателя.
+     *
+     * <p>
+     * Вариант использования:
+     *
+     * <pre>
+     * KafkaWriter kafkaWriter = new KafkaWriter.Builder(topic, writers, serializer).batchConfig(batchConfig).build();
+     * </pre>
+     *
+     * <p>
+     * <b>Synchronization</b>
+     * <p>
+     * Экземпляр данного класса не является потокобезопасным.
+     */
+    public static class Builder
+    {
+        private final String topic;
+        private final WritersSelector writers;
+        private final IBinarySerializer serializer;
+        private KafkaBatchConfig batchConfig;
+        private KafkaShardSpools spools;
+        private LatencyAwareShardPolicy shardPolicy;
+        private InFlightBudget inFlightBudget;
+        private int senderThreads = DEFAULT_SENDER_THREADS;
+
+        /**
+         * Конструктор.
+         * 
+         * @param topic топик
+         * @param writers селектор разделов временного хранилища
+         * @param serializer сериализатор. Байты совпадают с тем, что раньше отправлял StringEncoder, поэтому
+         *        читатели не затрагиваются.
+         */
+        public Builder(String topic, WritersSelector writers, ISerializer serializer)
+        {
+            this(topic, writers, toBinary(serializer));
+        }
+
+        /**
+         * Конструктор.
+         * 
+         * @param topic топик
+         * @param writers селектор разделов временного хранилища
+         * @param serializer бинарный сериализатор, например {@link ClusterEventsBinaryCodec}
+         */
+        public Builder(String topic, WritersSelector writers, IBinarySerializer serializer)
+        {
+            checkArgument(topic != null);
+            checkArgument(writers != null);
+            checkArgument(serializer != null);
+            this.topic = topic;
+            this.writers = writers;
+            this.serializer = serializer;
+        }
+
+        /**
+         * Задает настройки пакетной отправки.
+         * 
+         * @param batchConfig настройки, {@code null} - пакетная отправка не используется
+         * @return билдер
+         */
+        public Builder batchConfig(KafkaBatchConfig batchConfig)
+        {
+            this.batchConfig = batchConfig;
+            return this;
+        }
+
+        /**
+         * Задает количество потоков отправки пакетов. Пакеты одного раздела отправляются одним потоком за раз.
+         * 
+         * @param senderThreads количество потоков
+         * @return билдер
+         */
+        public Builder senderThreads(int senderThreads)
+        {
+            checkArgument(senderThreads > 0);
+            this.senderThreads = senderThreads;
+            return this;
+        }
+
+        /**
+         * Задает локальные журналы разделов на время их недоступности. Журналы закрываются вместе с писателем.
+         * 
+         * @param spools журналы, {@code null} - не используются
+         * @return билдер
+         */
+        public Builder spool(KafkaShardSpools spools)
+        {
+            this.spools = spools;
+            return this;
+        }
+
+        /**
+         * Задает политику выбора раздела с учетом задержек.
+         * 
+         * @param shardPolicy политика, {@code null} - раздел выбирает только {@link WritersSelector}
+         * @return билдер
+         */
+        public Builder shardPolicy(LatencyAwareShardPolicy shardPolicy)
+        {
+            this.shardPolicy = shardPolicy;
+            return this;
+        }
+
+        /**
+         * Задает бюджет байтов в полете по разделам для {@link KafkaWriter#tryWrite(ClusterEvents, int)} и
+         * {@link KafkaWriter#writeWithDeadline(ClusterEvents, int, long, TimeUnit)}.
+         * 
+         * @param inFlightBudget бюджет, {@code null} - запись не ограничивается
+         * @return билдер
+         */
+        public Builder inFlightBudget(InFlightBudget inFlightBudget)
+        {
+            this.inFlightBudget = inFlightBudget;
+            return this;
+        }
+
+        /**
+         * Создает писателя.
+         * 
+         * @return писатель
+         */
+        public KafkaWriter build()
+        {
+            return new KafkaWriter(this);
         }
-        producersMap.clear();
-        routeMap.clear();
     }
 
     @Localizable
@@ -158,5 +943,15 @@ public class KafkaWriter implements IKafkaWriter
         @Context("Если нет доступных временных хранилищ.")
         @Tags({"logs"})
         String not_available();
+
+        @DefaultString("Cannot send events from the local spool: {0}")
+        @Context("В случае ошибки повторной отправки событий из локального журнала во временное хранилище.")
+        @Tags({"logs"})
+        String failed_drain_spool(String value);
+
+        @DefaultString("Background send tasks did not finish in {0} seconds.")
+        @Context("Если при закрытии писателя фоновые задачи отправки не завершились за отведенное время.")
+        @Tags({"logs"})
+        String close_timeout(int seconds);
     }
 }
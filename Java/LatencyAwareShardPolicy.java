@@ -0,0 +1,211 @@
+---
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+---
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Политика выбора раздела временного хранилища с учетом задержек. Для каждого раздела ведется экспоненциально
+ * сглаженное среднее (EWMA) времени отправки и доли ошибок. Пока раздел исправен, идентификатор распределения
+ * нагрузки всегда попадает в раздел, выбранный {@link WritersSelector}, поэтому порядок событий не нарушается.
+ * Если раздел деградировал (превышен порог задержки или доли ошибок), идентификаторы детерминированно переводятся
+ * на следующий исправный раздел.
+ * <p>
+ * Раздел возвращается в работу с гистерезисом: показатели должны опуститься ниже половины порогов. Чтобы
+ * показатели деградировавшего раздела обновлялись, владелец политики периодически вызывает
+ * {@link #probeDegraded(IShardProbe)}, и раз в интервал проверки раздел получает служебный запрос. Запись событий
+ * для проверки не используется: иначе события одного идентификатора попеременно уходили бы в разные разделы и
+ * обгоняли друг друга.
+ * <p>
+ * Вариант использования:
+ *
+ * <pre>
+ * LatencyAwareShardPolicy policy = new LatencyAwareShardPolicy(0.2, 200, TimeUnit.MILLISECONDS, 0.5);
+ * Shard shard = policy.select(writers, id);
+ * ...
+ * policy.record(shard, latencyNanos, success);
+ * </pre>
+ * <p>
+ * <b>Synchronization</b>
+ * <p>
+ * Экземпляр данного класса является потокобезопасным.
+ */
+public class LatencyAwareShardPolicy
+{
+    /**
+     * Доля порога, ниже которой деградировавший раздел считается восстановившимся.
+     */
+    private static final double RECOVERY_FACTOR = 0.5;
+    /**
+     * Интервал пробной отправки в деградировавший раздел.
+     */
+    private static final long PROBE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private final double alpha;
+    private final double latencyThresholdNanos;
+    private final double errorRateThreshold;
+    private final ConcurrentMap<Shard, ShardHealth> health = new ConcurrentHashMap<>();
+
+    /**
+     * Конструктор.
+     *
+     * @param alpha вес нового измерения в EWMA, (0, 1]
+     * @param latencyThreshold порог задержки отправки
+     * @param unit единица измерения порога задержки
+     * @param errorRateThreshold порог доли ошибок, (0, 1]
+     */
+    public LatencyAwareShardPolicy(double alpha, long latencyThreshold, TimeUnit unit, double errorRateThreshold)
+    {
+        checkArgument(alpha > 0 && alpha <= 1);
+        checkArgument(latencyThreshold > 0);
+        checkArgument(unit != null);
+        checkArgument(errorRateThreshold > 0 && errorRateThreshold <= 1);
+        this.alpha = alpha;
+        this.latencyThresholdNanos = unit.toNanos(latencyThreshold);
+        this.errorRateThreshold = errorRateThreshold;
+    }
+
+    /**
+     * Выбирает раздел для идентификатора распределения нагрузки.
+     *
+     * @param writers селектор разделов
+     * @param id условный идентификатор для распределения нагрузки
+     * @return раздел или {@code null}, если разделов нет
+     */
+    public Shard select(WritersSelector writers, int id)
+    {
+        Shard primary = writers.selectShard(id);
+        if (primary == null)
+            return null;
+        if (!isDegraded(primary))
+            return primary;
+        int count = writers.getShardsCount();
+        for (int i = 1; i < count; ++i)
+        {
+            Shard candidate = writers.selectShard(id + i);
+            if (candidate != null && !isDegraded(candidate))
+                return candidate;
+        }
+        // Исправных нет - лучше основной, чем никакой.
+        return primary;
+    }
+
+    /**
+     * Учитывает результат отправки в раздел.
+     *
+     * @param shard раздел
+     * @param latencyNanos время отправки в наносекундах
+     * @param success {@code true}, если отправка успешна
+     */
+    public void record(Shard shard, long latencyNanos, boolean success)
+    {
+        if (shard == null)
+            return;
+        health.computeIfAbsent(shard, v -> new ShardHealth()).update(latencyNanos, success);
+    }
+
+    /**
+     * Отправляет служебный запрос в деградировавшие разделы, для которых истек интервал проверки, и учитывает его
+     * время и результат как отправку.
+     *
+     * @param probe служебный запрос
+     */
+    public void probeDegraded(IShardProbe probe)
+    {
+        checkArgument(probe != null);
+        for (Entry<Shard, ShardHealth> entry : health.entrySet())
+        {
+            ShardHealth shardHealth = entry.getValue();
+            if (!shardHealth.isDegraded() || !shardHealth.tryProbe(System.nanoTime()))
+                continue;
+            long start = System.nanoTime();
+            boolean success = false;
+            try
+            {
+                success = probe.probe(entry.getKey());
+            }
+            catch (RuntimeException e)
+            {
+                // Недоступность раздела учитывается как ошибка отправки.
+            }
+            shardHealth.update(System.nanoTime() - start, success);
+        }
+    }
+
+    /**
+     * Проверяет, считается ли раздел деградировавшим.
+     *
+     * @param shard раздел
+     * @return {@code true}, если раздел деградировал
+     */
+    public boolean isDegraded(Shard shard)
+    {
+        ShardHealth shardHealth = health.get(shard);
+        return shardHealth != null && shardHealth.isDegraded();
+    }
+
+    /**
+     * Служебный запрос для проверки раздела, не затрагивающий события.
+     */
+    @FunctionalInterface
+    public interface IShardProbe
+    {
+        /**
+         * Отправляет служебный запрос в раздел.
+         *
+         * @param shard раздел
+         * @return {@code true}, если раздел ответил
+         */
+        boolean probe(Shard shard);
+    }
+
+    private final class ShardHealth
+    {
+        private double latency;
+        private double errorRate;
+        private boolean initialized;
+        private volatile boolean degraded;
+        private long lastProbeNanos;
+
+        private boolean isDegraded()
+        {
+            return degraded;
+        }
+
+        private synchronized boolean tryProbe(long nowNanos)
+        {
+            if (nowNanos - lastProbeNanos < PROBE_INTERVAL_NANOS)
+                return false;
+            lastProbeNanos = nowNanos;
+            return true;
+        }
+
+        private synchronized void update(long latencyNanos, boolean success)
+        {
+            double error = success ? 0 : 1;
+            if (!initialized)
+            {
+                // Единичная ошибка на старте не должна сразу выводить раздел из работы.
+                latency = latencyNanos;
+                errorRate = alpha * error;
+                initialized = true;
+            }
+            else
+            {
+                latency += alpha * (latencyNanos - latency);
+                errorRate += alpha * (error - errorRate);
+            }
+            if (degraded)
+            {
+                degraded = latency > latencyThresholdNanos * RECOVERY_FACTOR
+                        || errorRate > errorRateThreshold * RECOVERY_FACTOR;
+            }
+            else if (latency > latencyThresholdNanos || errorRate > errorRateThreshold)
+            {
+                degraded = true;
+                lastProbeNanos = System.nanoTime();
+            }
+        }
+    }
+}
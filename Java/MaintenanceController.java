@@ -1,9 +1,11 @@
 ---
 import java.net.InetSocketAddress;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Optional;
 import kafka.common.KafkaException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -12,8 +14,18 @@ import com.google.inject.Inject;
 
 /**
  * Класс-контроллер отвечает за фиксирование изменения в хранилище и сдвиг офсетов Kafka. Фиксация происходит через
- * определенный интервал времени(commit.timeout). При успешном выполнении происходит сдвиг офсетов. На время фиксации
- * изменений, потоки для чтения сообщений приостанавливаются для избежания неверного сдвига офсетов.
+ * определенный интервал времени(commit.timeout). При успешном выполнении происходит сдвиг офсетов. Буферы разделов
+ * двойные: на время агрегации и фиксации изменений потоки чтения продолжают заполнять следующее поколение буфера, а
+ * сдвигается офсет, запомненный для отданного в агрегацию поколения. Если поколение не удалось агрегировать, офсеты в
+ * этом такте не сдвигаются.
+ * <p>
+ * Буферы разделов ограничены не только количеством пачек, но и объемом: общий бюджет памяти узла - четверть
+ * максимального размера кучи, и он поровну делится между разделами, которые может читать узел. Объем пачки, размер
+ * сообщения которой неизвестен, оценивается по периодически сериализуемым образцам.
+ * <p>
+ * Через контроллер запускается повторная загрузка диапазона смещений раздела
+ * ({@link #replay(List, Shard, long, long, ShardDecodePipeline.IDecoder)}): пачки загрузки передаются тому же
+ * агрегатору и сразу выгружаются в хранилище, по очереди с периодической фиксацией.
  *
  * <p>
  * <b>Synchronization</b>
@@ -25,6 +37,18 @@ public class MaintenanceController implements IController
     private static final Logger LOGGER = LoggerFactory.getLogger(MaintenanceController.class);
     private final Map<Shard, IKafkaReaderBufferController> buffers = new HashMap<>();
     private final Map<Shard, IRecoveryService> recoveryServices = new HashMap<>();
+    /**
+     * Бюджет памяти буферов узла: четверть кучи, замедление с 80% бюджета.
+     */
+    private final MemoryGovernor memoryGovernor = new MemoryGovernor(Runtime.getRuntime().maxMemory() / 4, 0.8);
+    /**
+     * Размер пачек, для которых обработчик не сообщает размер сообщения, по сериализованным образцам.
+     */
+    private final SampledEventsSizer eventsSizer = new SampledEventsSizer(new ClusterEventsBinaryCodec());
+    /**
+     * Агрегатор используется периодической фиксацией и повторной загрузкой по очереди.
+     */
+    private final Object aggregatorLock = new Object();
     @Inject
     private IKafkaReader kafkaReader;
     @Inject
@@ -43,8 +67,10 @@ public class MaintenanceController implements IController
     {
         IRecoveryService mongoRecoveryService = recoveryServices.computeIfAbsent(shard,
                 v -> new MongoRecoveryService(consumerConfig.getStorages()));
+        long maxBufferBytes = memoryGovernor.getBudget() / Math.max(1, kafkaReader.maxCountShards());
         IKafkaReaderBufferController buffer = buffers.computeIfAbsent(shard, v -> new KafkaReaderBufferControllerImpl(
-                aggregator, kafkaReader, mongoRecoveryService, consumerConfig.getMaxFetchSize()));
+                aggregator, kafkaReader, mongoRecoveryService, consumerConfig.getMaxFetchSize(), maxBufferBytes,
+                memoryGovernor, eventsSizer));
         try
         {
             kafkaReader.begin(brokers, shard, buffer, mongoRecoveryService);
@@ -82,6 +108,48 @@ public class MaintenanceController implements IController
         return kafkaReader.isWork(shard);
     }
 
+    /**
+     * Запускает повторную загрузку диапазона смещений раздела [fromOffset, toOffset) в хранилище в обход обычного
+     * чтения и фиксации офсетов.
+     *
+     * @param brokers брокеры временного хранилища
+     * @param shard раздел
+     * @param fromOffset первое загружаемое смещение
+     * @param toOffset смещение, следующее за последним загружаемым
+     * @param decoder разбор сообщения
+     * @return ход загрузки
+     * @throws ControllerException если читатель не поддерживает повторную загрузку или ее не удалось запустить
+     */
+    public ReplayProgress replay(List<InetSocketAddress> brokers, Shard shard, long fromOffset, long toOffset,
+            ShardDecodePipeline.IDecoder decoder) throws ControllerException
+    {
+        if (!(kafkaReader instanceof KafkaReader))
+            throw new ControllerException(new KafkaException(Messages.replay_unsupported()));
+        try
+        {
+            return ((KafkaReader)kafkaReader).replay(brokers, shard, fromOffset, toOffset, decoder, this::load);
+        }
+        catch (KafkaException e)
+        {
+            throw new ControllerException(e);
+        }
+    }
+
+    /**
+     * Загружает пачку повторной загрузки в хранилище. Метаинформация пачки агрегатору не передается: агрегатор
+     * запоминает ее как позицию восстановления раздела, а позиция старого диапазона отбросила бы обычное чтение
+     * назад.
+     */
+    private void load(Deque<ClusterEvents> events, MetaClusterEvent metaInfo) throws LoadException
+    {
+        synchronized (aggregatorLock)
+        {
+            aggregator.addEvent(events, Optional.empty());
+            while (aggregator.hasData() && !Thread.currentThread().isInterrupted())
+                aggregator.push();
+        }
+    }
+
     /**
      * Можно наследоваться и реализовать свою версию контроллера по организации загрузки событий в хранилище.
      */
@@ -89,16 +157,10 @@ public class MaintenanceController implements IController
     {
         try
         {
-            try
-            {
-                mergeEvents();
-                while (aggregator.hasData() && !Thread.currentThread().isInterrupted())
-                    aggregator.push();
-            }
-            catch (LoadException | BufferException e)
+            synchronized (aggregatorLock)
             {
-                LOGGER.warn(e.getMessage());
-                LOGGER.trace("Load message into storage exception.", e);
+                if (!mergeAndPush())
+                    return;
             }
             kafkaReader.commit();
         }
@@ -111,6 +173,35 @@ public class MaintenanceController implements IController
         }
     }
 
+    /**
+     * @return {@code false}, если офсеты в этом такте сдвигать нельзя
+     */
+    private boolean mergeAndPush()
+    {
+        try
+        {
+            mergeEvents();
+        }
+        catch (BufferException e)
+        {
+            // События поколения возвращены в буфер, а его офсет уже запомнен - сдвигать его нельзя.
+            LOGGER.warn(e.getMessage());
+            LOGGER.trace("Load message into storage exception.", e);
+            return false;
+        }
+        try
+        {
+            while (aggregator.hasData() && !Thread.currentThread().isInterrupted())
+                aggregator.push();
+        }
+        catch (LoadException e)
+        {
+            LOGGER.warn(e.getMessage());
+            LOGGER.trace("Load message into storage exception.", e);
+        }
+        return true;
+    }
+
     private synchronized void mergeEvents() throws BufferException
     {
         for (Entry<Shard, IKafkaReaderBufferController> entry : buffers.entrySet())
@@ -129,5 +220,10 @@ public class MaintenanceController implements IController
         @Context("Если возникла ошибка, которую не удается распознать.")
         @Tags({"logs"})
         String unexpected_exception(String value);
+
+        @DefaultString("The events reader does not support replay.")
+        @Context("Если используемый читатель временного хранилища не поддерживает повторную загрузку диапазона.")
+        @Tags({"logs"})
+        String replay_unsupported();
     }
 }
@@ -0,0 +1,124 @@
+---
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Бюджет памяти узла на буферы событий всех разделов. Буферы резервируют в нем байты перед добавлением событий и
+ * возвращают их после агрегации.
+ * <p>
+ * До мягкого порога резервирование разрешено всем. Между мягким порогом и бюджетом давление растет линейно от 0 до
+ * 1, и буферу отказывают, если его доля не меньше {@code 1 - давление}. Доля считается от справедливой части
+ * бюджета - бюджета, поделенного на количество буферов, которые сейчас что-то занимают: сразу за мягким порогом
+ * замедляются буферы, превысившие свою часть, а при заполненном бюджете - все. Пустому буферу не отказывают
+ * никогда, иначе раздел не смог бы продвинуться.
+ * <p>
+ * Вариант использования:
+ *
+ * <pre>
+ * MemoryGovernor governor = new MemoryGovernor(512 * 1024 * 1024, 0.8);
+ * IKafkaReaderBufferController buffer = new KafkaReaderBufferControllerImpl(aggregator, kafkaReader,
+ *         recoveryService, fetchMaxSize, 64 * 1024 * 1024, governor, null);
+ * </pre>
+ * <p>
+ * <b>Synchronization</b>
+ * <p>
+ * Экземпляр данного класса является потокобезопасным.
+ */
+public class MemoryGovernor
+{
+    private final long budget;
+    private final long softLimit;
+    private long used;
+    /**
+     * Количество буферов, которые занимают память.
+     */
+    private int activeOwners;
+
+    /**
+     * Конструктор.
+     *
+     * @param budget бюджет памяти узла в байтах
+     * @param softRatio доля бюджета, после которой начинается замедление, (0, 1]
+     */
+    public MemoryGovernor(long budget, double softRatio)
+    {
+        checkArgument(budget > 0);
+        checkArgument(softRatio > 0 && softRatio <= 1);
+        this.budget = budget;
+        this.softLimit = (long)(budget * softRatio);
+    }
+
+    /**
+     * Пытается зарезервировать память для буфера.
+     *
+     * @param ownerUsage сколько уже занимает буфер, в байтах
+     * @param bytes сколько нужно зарезервировать, в байтах
+     * @return {@code true}, если память зарезервирована
+     */
+    public synchronized boolean tryAcquire(long ownerUsage, long bytes)
+    {
+        checkArgument(ownerUsage >= 0 && bytes >= 0);
+        if (ownerUsage > 0 && isPressured(ownerUsage, used + bytes))
+            return false;
+        if (ownerUsage == 0 && bytes > 0)
+            ++activeOwners;
+        used += bytes;
+        return true;
+    }
+
+    /**
+     * Возвращает память буфера в бюджет.
+     *
+     * @param ownerUsage сколько занимает буфер до возврата, в байтах
+     * @param bytes количество возвращаемых байтов
+     */
+    public synchronized void release(long ownerUsage, long bytes)
+    {
+        checkArgument(ownerUsage >= 0 && bytes >= 0);
+        if (ownerUsage > 0 && ownerUsage <= bytes)
+            activeOwners = Math.max(0, activeOwners - 1);
+        used = Math.max(0, used - bytes);
+    }
+
+    /**
+     * Проверяет, получит ли буфер отказ при следующем резервировании.
+     *
+     * @param ownerUsage сколько занимает буфер, в байтах
+     * @return {@code true}, если буфер следует притормозить
+     */
+    public synchronized boolean isPressured(long ownerUsage)
+    {
+        return ownerUsage > 0 && isPressured(ownerUsage, used);
+    }
+
+    /**
+     * Возвращает бюджет памяти.
+     *
+     * @return количество байтов
+     */
+    public long getBudget()
+    {
+        return budget;
+    }
+
+    /**
+     * Возвращает занятую память.
+     *
+     * @return количество байтов
+     */
+    public synchronized long getUsed()
+    {
+        return used;
+    }
+
+    private boolean isPressured(long ownerUsage, long total)
+    {
+        if (total <= softLimit)
+            return false;
+        if (total >= budget)
+            return true;
+        double pressure = softLimit == budget ? 1 : (double)(total - softLimit) / (budget - softLimit);
+        double fairShare = (double)budget / Math.max(1, activeOwners);
+        double share = ownerUsage / fairShare;
+        return share >= 1 - pressure;
+    }
+}
@@ -0,0 +1,76 @@
+---
+import java.io.IOException;
+import org.bson.Document;
+import org.bson.types.Binary;
+---
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.UpdateOptions;
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Хранилище словарей сжатия в коллекции MongoDB. Документ словаря:
+ *
+ * <pre>
+ * { _id: идентификатор, data: содержимое }
+ * </pre>
+ * <p>
+ * Вариант использования:
+ *
+ * <pre>
+ * ICompressionDictionaryStore store = new MongoCompressionDictionaryStore(database.getCollection("dictionaries"));
+ * CompressionDictionaries dictionaries = new CompressionDictionaries(store);
+ * </pre>
+ * <p>
+ * <b>Synchronization</b>
+ * <p>
+ * Экземпляр данного класса является потокобезопасным.
+ */
+public class MongoCompressionDictionaryStore implements ICompressionDictionaryStore
+{
+    private static final String ID_FIELD = "_id";
+    private static final String DATA_FIELD = "data";
+    private final MongoCollection<Document> collection;
+
+    /**
+     * Конструктор.
+     *
+     * @param collection коллекция словарей
+     */
+    public MongoCompressionDictionaryStore(MongoCollection<Document> collection)
+    {
+        checkArgument(collection != null);
+        this.collection = collection;
+    }
+
+    @Override
+    public void save(int id, byte[] data) throws IOException
+    {
+        try
+        {
+            collection.replaceOne(new Document(ID_FIELD, id), new Document(ID_FIELD, id).append(DATA_FIELD,
+                    new Binary(data)), new UpdateOptions().upsert(true));
+        }
+        catch (MongoException e)
+        {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public byte[] load(int id) throws IOException
+    {
+        try
+        {
+            Document document = collection.find(new Document(ID_FIELD, id)).first();
+            if (document == null)
+                return null;
+            Binary data = document.get(DATA_FIELD, Binary.class);
+            return data == null ? null : data.getData();
+        }
+        catch (MongoException | ClassCastException e)
+        {
+            throw new IOException(e);
+        }
+    }
+}
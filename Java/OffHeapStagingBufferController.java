@@ -0,0 +1,652 @@
+---
+import java.nio.ByteBuffer;
+import java.util.AbstractCollection;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+---
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Контроллер буфера раздела, хранящий прочитанные пачки событий вне кучи. Пачка кодируется
+ * {@link ClusterEventsBinaryCodec} и дописывается в сегмент прямой памяти, а объекты событий восстанавливаются
+ * только при агрегации. Между чтением и агрегацией куча не растет, как бы велико ни было отставание раздела.
+ * <p>
+ * Агрегатор получает очередь, которая разбирает пачку только при ее извлечении: в куче одновременно находятся лишь
+ * пачки, которые агрегатор еще держит, а не все поколение. После {@link IAggregator#addEvent(Deque, Optional)}
+ * очередь становится недействительной, и сегменты поколения переиспользуются. Если агрегатор не принял поколение,
+ * в буфер возвращается только то, что осталось в очереди: пачки, которые агрегатор успел извлечь, не повторяются,
+ * а пачки, которые он вернул в очередь, снова кодируются в сегменты.
+ * <p>
+ * Формат записи сегмента:
+ *
+ * <pre>
+ * ДЛИНА(4) сообщение
+ * </pre>
+ *
+ * Сегменты одного размера переиспользуются, их количество ограничено. Пачка больше сегмента получает отдельный
+ * сегмент точного размера, который после агрегации освобождается. Как и в {@link KafkaReaderBufferControllerImpl},
+ * буфер двойной: при агрегации заполняемое поколение подменяется пустым, и разбор идет без блокировки читателя.
+ * <p>
+ * Вариант использования:
+ *
+ * <pre>
+ * IKafkaReaderBufferController buffer = new OffHeapStagingBufferController(aggregator, kafkaReader,
+ *         recoveryService, fetchMaxSize, 4 * 1024 * 1024, 64);
+ * </pre>
+ * <p>
+ * <b>Synchronization</b>
+ * <p>
+ * Экземпляр данного класса является потокобезопасным.
+ */
+public class OffHeapStagingBufferController implements IKafkaReaderBufferController
+{
+    private static final int LENGTH_SIZE = 4;
+    private final IAggregator aggregator;
+    private final IKafkaReader kafkaReader;
+    private final IRecoveryService recoveryService;
+    private final int fetchMaxSize;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final ClusterEventsBinaryCodec codec = new ClusterEventsBinaryCodec();
+    /**
+     * Свободные сегменты стандартного размера.
+     */
+    private final Deque<ByteBuffer> free = new ArrayDeque<>();
+    /**
+     * Упорядочивает агрегации между собой, не блокируя читателя.
+     */
+    private final Object aggregateLock = new Object();
+    /**
+     * Сегменты заполняемого поколения в порядке записи.
+     */
+    private List<ByteBuffer> staged = new ArrayList<>();
+    private int stagedBatches;
+    private int allocatedSegments;
+
+    /**
+     * Конструктор.
+     *
+     * @param aggregator агрегатор
+     * @param kafkaReader читатель из временного хранилища
+     * @param recoveryService сервис восстановления после сбоя
+     * @param fetchMaxSize максимальное количество пачек в буфере
+     * @param segmentSize размер сегмента в байтах
+     * @param maxSegments максимальное количество сегментов
+     */
+    public OffHeapStagingBufferController(IAggregator aggregator, IKafkaReader kafkaReader,
+            IRecoveryService recoveryService, int fetchMaxSize, int segmentSize, int maxSegments)
+    {
+        checkArgument(aggregator != null);
+        checkArgument(kafkaReader != null);
+        checkArgument(segmentSize > LENGTH_SIZE);
+        checkArgument(maxSegments > 0);
+        this.aggregator = aggregator;
+        this.kafkaReader = kafkaReader;
+        this.recoveryService = recoveryService;
+        this.fetchMaxSize = fetchMaxSize;
+        this.segmentSize = segmentSize;
+        this.maxSegments = maxSegments;
+    }
+
+    @Override
+    public boolean addEvents(ClusterEvents events)
+    {
+        checkArgument(events != null);
+        byte[] data;
+        try
+        {
+            // Кодирование выполняется без захвата монитора.
+            data = codec.serialize(events);
+        }
+        catch (SerializeException e)
+        {
+            throw new IllegalArgumentException(e);
+        }
+        return stage(data);
+    }
+
+    @Override
+    public synchronized boolean isFull()
+    {
+        if (stagedBatches >= fetchMaxSize)
+            return true;
+        ByteBuffer last = staged.isEmpty() ? null : staged.get(staged.size() - 1);
+        return free.isEmpty() && allocatedSegments >= maxSegments && (last == null || !last.hasRemaining());
+    }
+
+    @Override
+    public boolean aggregate(Shard shard)
+    {
+        synchronized (aggregateLock)
+        {
+            List<ByteBuffer> generation;
+            int generationBatches;
+            MetaClusterEvent metaInfo;
+            synchronized (this)
+            {
+                metaInfo = recoveryService.getMetainfo();
+                if (metaInfo == null && stagedBatches > 0)
+                    throw new IllegalStateException("Metainfo is null, but buffer event not empty!");
+                generation = staged;
+                generationBatches = stagedBatches;
+                staged = new ArrayList<>();
+                stagedBatches = 0;
+                // В данном блоке процесс не может читать события,
+                // поэтому задать оффсет нужно тут, если предыдущий уже зафиксирован.
+                if (kafkaReader.isCommitted(shard))
+                    kafkaReader.setCommitOffset(shard);
+            }
+            StagedEvents events = new StagedEvents(codec, generation, generationBatches);
+            try
+            {
+                aggregator.addEvent(events, metaInfo == null ? Optional.empty() : Optional.of(metaInfo));
+            }
+            catch (LoadException e)
+            {
+                requeue(events, generation, generationBatches);
+                throw new BufferException(e);
+            }
+            events.invalidate();
+            recycle(generation);
+            return true;
+        }
+    }
+
+    @Override
+    public int fetchMaxSize()
+    {
+        return fetchMaxSize;
+    }
+
+    private synchronized boolean stage(byte[] data)
+    {
+        if (stagedBatches >= fetchMaxSize)
+            return false;
+        int recordSize = LENGTH_SIZE + data.length;
+        ByteBuffer last = staged.isEmpty() ? null : staged.get(staged.size() - 1);
+        if (last == null || last.remaining() < recordSize)
+        {
+            last = obtainSegment(recordSize);
+            if (last == null)
+                return false;
+            staged.add(last);
+        }
+        last.putInt(data.length);
+        last.put(data);
+        ++stagedBatches;
+        return true;
+    }
+
+    /**
+     * Выделяет сегмент для записи. В пустой буфер запись принимается всегда, иначе раздел не смог бы продвинуться.
+     */
+    private ByteBuffer obtainSegment(int recordSize)
+    {
+        if (allocatedSegments >= maxSegments && !staged.isEmpty() && (recordSize > segmentSize || free.isEmpty()))
+            return null;
+        return newSegment(recordSize);
+    }
+
+    /**
+     * Выделяет сегмент без учета предела: свободный сегмент стандартного размера или новый.
+     */
+    private ByteBuffer newSegment(int recordSize)
+    {
+        if (recordSize <= segmentSize)
+        {
+            ByteBuffer segment = free.poll();
+            if (segment != null)
+                return segment;
+        }
+        ++allocatedSegments;
+        return ByteBuffer.allocateDirect(Math.max(recordSize, segmentSize));
+    }
+
+    /**
+     * Возвращает в буфер перед более новыми пачками то, что осталось в очереди непринятого поколения. Нетронутое
+     * поколение возвращается целиком без копирования, иначе оставшиеся записи переписываются в новые сегменты, а
+     * сегменты поколения освобождаются. Пачки не должны теряться, поэтому новые сегменты выделяются и сверх предела:
+     * {@link #isFull()} останавливает чтение, пока они не освободятся.
+     */
+    private void requeue(StagedEvents events, List<ByteBuffer> generation, int generationBatches)
+    {
+        if (events.isUntouched())
+        {
+            events.invalidate();
+            synchronized (this)
+            {
+                generation.addAll(staged);
+                staged = generation;
+                stagedBatches += generationBatches;
+            }
+            return;
+        }
+        List<ByteBuffer> records;
+        try
+        {
+            // Кодирование пачек, возвращенных агрегатором в очередь, выполняется без захвата монитора.
+            records = events.remaining();
+        }
+        catch (SerializeException e)
+        {
+            throw new IllegalStateException(e);
+        }
+        synchronized (this)
+        {
+            List<ByteBuffer> rest = new ArrayList<>();
+            for (ByteBuffer record : records)
+            {
+                int recordSize = LENGTH_SIZE + record.remaining();
+                ByteBuffer last = rest.isEmpty() ? null : rest.get(rest.size() - 1);
+                if (last == null || last.remaining() < recordSize)
+                {
+                    last = newSegment(recordSize);
+                    rest.add(last);
+                }
+                last.putInt(record.remaining());
+                last.put(record);
+            }
+            events.invalidate();
+            recycle(generation);
+            rest.addAll(staged);
+            staged = rest;
+            stagedBatches += records.size();
+        }
+    }
+
+    private synchronized void recycle(List<ByteBuffer> generation)
+    {
+        for (ByteBuffer segment : generation)
+        {
+            if (segment.capacity() == segmentSize)
+            {
+                segment.clear();
+                free.push(segment);
+            }
+            else
+            {
+                --allocatedSegments;
+            }
+        }
+    }
+
+    /**
+     * События поколения, разбираемые по мере извлечения. Более новые пачки - в начале, как в
+     * {@link KafkaReaderBufferControllerImpl}. Хранятся только позиции записей в сегментах; пачки, добавленные
+     * агрегатором, держатся в куче отдельно. Удаление произвольного элемента не поддерживается.
+     * <p>
+     * Запоминается только последняя разобранная запись, поэтому обход итератором с последующим извлечением разбирает
+     * записи дважды. Это сознательная цена: кэш всех пройденных записей держал бы в куче все поколение, от чего
+     * очередь и избавляет.
+     */
+    private static final class StagedEvents extends AbstractCollection<ClusterEvents> implements Deque<ClusterEvents>
+    {
+        private final ClusterEventsBinaryCodec codec;
+        private final ByteBuffer[] segments;
+        /**
+         * Сегмент и смещение записи, от старых пачек к новым.
+         */
+        private final int[] recordSegments;
+        private final int[] recordPositions;
+        private final int count;
+        /**
+         * Еще не извлеченные записи - {@code [low, high)}.
+         */
+        private int low;
+        private int high;
+        private final Deque<ClusterEvents> added = new ArrayDeque<>();
+        private final Deque<ClusterEvents> appended = new ArrayDeque<>();
+        private int cachedIndex = -1;
+        private ClusterEvents cached;
+        private boolean valid = true;
+
+        private StagedEvents(ClusterEventsBinaryCodec codec, List<ByteBuffer> generation, int generationBatches)
+        {
+            this.codec = codec;
+            segments = new ByteBuffer[generation.size()];
+            recordSegments = new int[generationBatches];
+            recordPositions = new int[generationBatches];
+            int count = 0;
+            for (int i = 0; i < segments.length; ++i)
+            {
+                ByteBuffer records = generation.get(i).duplicate();
+                records.flip();
+                segments[i] = records;
+                int position = 0;
+                while (position < records.limit() && count < generationBatches)
+                {
+                    recordSegments[count] = i;
+                    recordPositions[count] = position;
+                    ++count;
+                    position += LENGTH_SIZE + records.getInt(position);
+                }
+            }
+            this.count = count;
+            high = count;
+        }
+
+        /**
+         * Проверяет, что агрегатор ничего не извлек из очереди и ничего в нее не добавил.
+         */
+        private boolean isUntouched()
+        {
+            return low == 0 && high == count && added.isEmpty() && appended.isEmpty();
+        }
+
+        /**
+         * Возвращает содержимое оставшихся в очереди пачек от старых к новым без длины записи. Записи сегментов не
+         * разбираются, а указывают на сегменты поколения; пачки, добавленные агрегатором, кодируются заново.
+         *
+         * @return содержимое пачек
+         * @throws SerializeException если пачку, добавленную агрегатором, не удалось закодировать
+         */
+        private List<ByteBuffer> remaining() throws SerializeException
+        {
+            List<ByteBuffer> records = new ArrayList<>(size());
+            for (Iterator<ClusterEvents> it = appended.descendingIterator(); it.hasNext();)
+                records.add(ByteBuffer.wrap(codec.serialize(it.next())));
+            for (int index = low; index < high; ++index)
+            {
+                ByteBuffer record = segments[recordSegments[index]].duplicate();
+                int position = recordPositions[index] + LENGTH_SIZE;
+                record.limit(position + record.getInt(recordPositions[index]));
+                record.position(position);
+                records.add(record);
+            }
+            for (Iterator<ClusterEvents> it = added.descendingIterator(); it.hasNext();)
+                records.add(ByteBuffer.wrap(codec.serialize(it.next())));
+            return records;
+        }
+
+        /**
+         * Делает очередь недействительной перед переиспользованием сегментов.
+         */
+        private void invalidate()
+        {
+            valid = false;
+            cached = null;
+        }
+
+        @Override
+        public int size()
+        {
+            return added.size() + high - low + appended.size();
+        }
+
+        @Override
+        public void clear()
+        {
+            added.clear();
+            appended.clear();
+            low = high;
+            cached = null;
+        }
+
+        @Override
+        public void addFirst(ClusterEvents events)
+        {
+            added.addFirst(events);
+        }
+
+        @Override
+        public void addLast(ClusterEvents events)
+        {
+            appended.addLast(events);
+        }
+
+        @Override
+        public boolean offerFirst(ClusterEvents events)
+        {
+            addFirst(events);
+            return true;
+        }
+
+        @Override
+        public boolean offerLast(ClusterEvents events)
+        {
+            addLast(events);
+            return true;
+        }
+
+        @Override
+        public ClusterEvents removeFirst()
+        {
+            ClusterEvents events = pollFirst();
+            if (events == null)
+                throw new NoSuchElementException();
+            return events;
+        }
+
+        @Override
+        public ClusterEvents removeLast()
+        {
+            ClusterEvents events = pollLast();
+            if (events == null)
+                throw new NoSuchElementException();
+            return events;
+        }
+
+        @Override
+        public ClusterEvents pollFirst()
+        {
+            if (!added.isEmpty())
+                return added.pollFirst();
+            if (low < high)
+                return take(--high);
+            return appended.pollFirst();
+        }
+
+        @Override
+        public ClusterEvents pollLast()
+        {
+            if (!appended.isEmpty())
+                return appended.pollLast();
+            if (low < high)
+                return take(low++);
+            return added.pollLast();
+        }
+
+        @Override
+        public ClusterEvents getFirst()
+        {
+            ClusterEvents events = peekFirst();
+            if (events == null)
+                throw new NoSuchElementException();
+            return events;
+        }
+
+        @Override
+        public ClusterEvents getLast()
+        {
+            ClusterEvents events = peekLast();
+            if (events == null)
+                throw new NoSuchElementException();
+            return events;
+        }
+
+        @Override
+        public ClusterEvents peekFirst()
+        {
+            if (!added.isEmpty())
+                return added.peekFirst();
+            if (low < high)
+                return read(high - 1);
+            return appended.peekFirst();
+        }
+
+        @Override
+        public ClusterEvents peekLast()
+        {
+            if (!appended.isEmpty())
+                return appended.peekLast();
+            if (low < high)
+                return read(low);
+            return added.peekLast();
+        }
+
+        @Override
+        public boolean removeFirstOccurrence(Object o)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean removeLastOccurrence(Object o)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean remove(Object o)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean add(ClusterEvents events)
+        {
+            addLast(events);
+            return true;
+        }
+
+        @Override
+        public boolean offer(ClusterEvents events)
+        {
+            return offerLast(events);
+        }
+
+        @Override
+        public ClusterEvents remove()
+        {
+            return removeFirst();
+        }
+
+        @Override
+        public ClusterEvents poll()
+        {
+            return pollFirst();
+        }
+
+        @Override
+        public ClusterEvents element()
+        {
+            return getFirst();
+        }
+
+        @Override
+        public ClusterEvents peek()
+        {
+            return peekFirst();
+        }
+
+        @Override
+        public void push(ClusterEvents events)
+        {
+            addFirst(events);
+        }
+
+        @Override
+        public ClusterEvents pop()
+        {
+            return removeFirst();
+        }
+
+        @Override
+        public Iterator<ClusterEvents> iterator()
+        {
+            return new Iterator<ClusterEvents>()
+            {
+                private final Iterator<ClusterEvents> before = added.iterator();
+                private final Iterator<ClusterEvents> after = appended.iterator();
+                private int next = high - 1;
+
+                @Override
+                public boolean hasNext()
+                {
+                    return before.hasNext() || next >= low || after.hasNext();
+                }
+
+                @Override
+                public ClusterEvents next()
+                {
+                    if (before.hasNext())
+                        return before.next();
+                    if (next >= low)
+                        return read(next--);
+                    return after.next();
+                }
+            };
+        }
+
+        @Override
+        public Iterator<ClusterEvents> descendingIterator()
+        {
+            return new Iterator<ClusterEvents>()
+            {
+                private final Iterator<ClusterEvents> before = appended.descendingIterator();
+                private final Iterator<ClusterEvents> after = added.descendingIterator();
+                private int next = low;
+
+                @Override
+                public boolean hasNext()
+                {
+                    return before.hasNext() || next < high || after.hasNext();
+                }
+
+                @Override
+                public ClusterEvents next()
+                {
+                    if (before.hasNext())
+                        return before.next();
+                    if (next < high)
+                        return read(next++);
+                    return after.next();
+                }
+            };
+        }
+
+        /**
+         * Извлекает запись: разобранная пачка больше не держится очередью.
+         */
+        private ClusterEvents take(int index)
+        {
+            ClusterEvents events = read(index);
+            if (cachedIndex == index)
+                cached = null;
+            return events;
+        }
+
+        /**
+         * Разбирает запись. Последняя разобранная запись запоминается, чтобы просмотр и извлечение одной пачки не
+         * разбирали ее дважды. Остальные записи при повторном обращении разбираются заново.
+         */
+        private ClusterEvents read(int index)
+        {
+            if (!valid)
+                throw new IllegalStateException("Staged events are already released!");
+            if (cached != null && cachedIndex == index)
+                return cached;
+            ByteBuffer record = segments[recordSegments[index]].duplicate();
+            int position = recordPositions[index];
+            byte[] data = new byte[record.getInt(position)];
+            record.position(position + LENGTH_SIZE);
+            record.get(data);
+            try
+            {
+                cached = codec.deserialize(data);
+            }
+            catch (SerializeException e)
+            {
+                // Сегменты пишет только этот класс, ошибка разбора означает повреждение памяти или ошибку кодека.
+                throw new IllegalStateException(e);
+            }
+            cachedIndex = index;
+            return cached;
+        }
+    }
+}
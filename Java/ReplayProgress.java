@@ -0,0 +1,126 @@
+---
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+---
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Ход повторной загрузки диапазона смещений раздела: текущая позиция, доля выполнения и скорость.
+ * <p>
+ * Вариант использования:
+ *
+ * <pre>
+ * ReplayProgress progress = kafkaReader.replay(brokers, shard, from, to, decoder, sink);
+ * while (!progress.getCompletion().isDone())
+ *     LOGGER.info(progress.toString());
+ * </pre>
+ * <p>
+ * <b>Synchronization</b>
+ * <p>
+ * Экземпляр данного класса является потокобезопасным.
+ */
+public final class ReplayProgress
+{
+    private final Shard shard;
+    private final long fromOffset;
+    private final long toOffset;
+    private final long startNanos = System.nanoTime();
+    private final CompletableFuture<Void> completion = new CompletableFuture<>();
+    private volatile long position;
+    private volatile long messages;
+    private volatile long bytes;
+
+    ReplayProgress(Shard shard, long fromOffset, long toOffset)
+    {
+        checkArgument(shard != null);
+        checkArgument(fromOffset >= 0 && fromOffset <= toOffset);
+        this.shard = shard;
+        this.fromOffset = fromOffset;
+        this.toOffset = toOffset;
+        this.position = fromOffset;
+    }
+
+    /**
+     * Возвращает раздел.
+     *
+     * @return раздел
+     */
+    public Shard getShard()
+    {
+        return shard;
+    }
+
+    /**
+     * Возвращает смещение, с которого продолжится загрузка.
+     *
+     * @return смещение
+     */
+    public long getPosition()
+    {
+        return position;
+    }
+
+    /**
+     * Возвращает долю выполнения.
+     *
+     * @return значение от 0 до 1
+     */
+    public double getProgress()
+    {
+        if (toOffset == fromOffset)
+            return 1;
+        return (double)(position - fromOffset) / (toOffset - fromOffset);
+    }
+
+    /**
+     * Возвращает среднюю скорость загрузки в сообщениях в секунду.
+     *
+     * @return скорость
+     */
+    public double getMessagesPerSecond()
+    {
+        return messages / elapsedSeconds();
+    }
+
+    /**
+     * Возвращает среднюю скорость загрузки в байтах в секунду.
+     *
+     * @return скорость
+     */
+    public double getBytesPerSecond()
+    {
+        return bytes / elapsedSeconds();
+    }
+
+    /**
+     * Возвращает future завершения загрузки. Отмена future останавливает загрузку после текущей пачки.
+     *
+     * @return future
+     */
+    public CompletableFuture<Void> getCompletion()
+    {
+        return completion;
+    }
+
+    /**
+     * Учитывает загруженную пачку. Вызывается только потоком загрузки.
+     */
+    void advance(long nextOffset, int batchMessages, long batchBytes)
+    {
+        position = nextOffset;
+        messages += batchMessages;
+        bytes += batchBytes;
+    }
+
+    private double elapsedSeconds()
+    {
+        return Math.max(1, System.nanoTime() - startNanos) / (double)TimeUnit.SECONDS.toNanos(1);
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("shard %d: %d of [%d, %d) %.1f%%, %.0f msg/s, %.0f B/s", shard.getShardNumber(),
+                position, fromOffset, toOffset, getProgress() * 100, getMessagesPerSecond(), getBytesPerSecond());
+    }
+}
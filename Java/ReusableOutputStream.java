@@ -0,0 +1,72 @@
+---
+import java.io.ByteArrayOutputStream;
+import java.util.zip.Deflater;
+---
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Переиспользуемый буфер сериализации. Предназначен для хранения в {@link ThreadLocal}: после {@link #reset()}
+ * внутренний массив сохраняется, поэтому при установившемся размере сообщений сериализация не выделяет память под
+ * промежуточные данные. Массив, выросший больше порога, после сброса отпускается, чтобы единичное большое сообщение
+ * не удерживало память потока.
+ * <p>
+ * Вариант использования:
+ *
+ * <pre>
+ * private static final ThreadLocal&lt;ReusableOutputStream&gt; BUFFER = ThreadLocal.withInitial(
+ *         () -&gt; new ReusableOutputStream(4096, 1024 * 1024));
+ * ...
+ * ReusableOutputStream out = BUFFER.get();
+ * out.reset();
+ * </pre>
+ * <p>
+ * <b>Synchronization</b>
+ * <p>
+ * Экземпляр данного класса не является потокобезопасным.
+ */
+final class ReusableOutputStream extends ByteArrayOutputStream
+{
+    private final int initialSize;
+    private final int maxRetainedSize;
+
+    /**
+     * Конструктор.
+     *
+     * @param initialSize начальный размер массива
+     * @param maxRetainedSize максимальный размер массива, сохраняемого после сброса
+     */
+    ReusableOutputStream(int initialSize, int maxRetainedSize)
+    {
+        super(initialSize);
+        checkArgument(maxRetainedSize >= initialSize);
+        this.initialSize = initialSize;
+        this.maxRetainedSize = maxRetainedSize;
+    }
+
+    @Override
+    public synchronized void reset()
+    {
+        if (buf.length > maxRetainedSize)
+            buf = new byte[initialSize];
+        count = 0;
+    }
+
+    /**
+     * Дописывает результат компрессора прямо во внутренний массив, без промежуточного буфера.
+     *
+     * @param deflater компрессор, для которого уже вызван {@link Deflater#finish()}
+     */
+    synchronized void deflate(Deflater deflater)
+    {
+        while (!deflater.finished())
+        {
+            if (count == buf.length)
+            {
+                byte[] grown = new byte[Math.max(buf.length * 2, initialSize)];
+                System.arraycopy(buf, 0, grown, 0, count);
+                buf = grown;
+            }
+            count += deflater.deflate(buf, count, buf.length - count);
+        }
+    }
+}
@@ -0,0 +1,106 @@
+---
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToIntFunction;
+---
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Размер пачки событий в байтах для буферов, которым обработчик не сообщает размер исходного сообщения. Каждая
+ * {@code samplePeriod}-я пачка сериализуется, и ее настоящий размер уточняет сглаженный размер одного события.
+ * Остальные пачки оцениваются по количеству событий и этому размеру, поэтому оценка следует за реальными данными,
+ * а сериализуется только малая часть пачек.
+ * <p>
+ * Вариант использования:
+ *
+ * <pre>
+ * ToIntFunction&lt;ClusterEvents&gt; sizer = new SampledEventsSizer(new ClusterEventsBinaryCodec());
+ * IKafkaReaderBufferController buffer = new KafkaReaderBufferControllerImpl(aggregator, kafkaReader,
+ *         recoveryService, fetchMaxSize, maxBufferBytes, governor, sizer);
+ * </pre>
+ * <p>
+ * <b>Synchronization</b>
+ * <p>
+ * Экземпляр данного класса является потокобезопасным.
+ */
+public class SampledEventsSizer implements ToIntFunction<ClusterEvents>
+{
+    /**
+     * Период сериализации образцов по умолчанию, пачек.
+     */
+    private static final int DEFAULT_SAMPLE_PERIOD = 64;
+    /**
+     * Начальный размер события до первого образца, байт.
+     */
+    private static final double INITIAL_EVENT_SIZE = 512;
+    /**
+     * Вес нового образца в сглаженном размере события.
+     */
+    private static final double SAMPLE_ALPHA = 0.2;
+    private final IBinarySerializer serializer;
+    private final int samplePeriod;
+    private final AtomicLong batches = new AtomicLong();
+    private volatile double eventSize = INITIAL_EVENT_SIZE;
+    private boolean sampled;
+
+    /**
+     * Конструктор. Сериализуется каждая 64-я пачка.
+     *
+     * @param serializer сериализатор сообщений временного хранилища
+     */
+    public SampledEventsSizer(IBinarySerializer serializer)
+    {
+        this(serializer, DEFAULT_SAMPLE_PERIOD);
+    }
+
+    /**
+     * Конструктор.
+     *
+     * @param serializer сериализатор сообщений временного хранилища
+     * @param samplePeriod период сериализации образцов, пачек
+     */
+    public SampledEventsSizer(IBinarySerializer serializer, int samplePeriod)
+    {
+        checkArgument(serializer != null);
+        checkArgument(samplePeriod > 0);
+        this.serializer = serializer;
+        this.samplePeriod = samplePeriod;
+    }
+
+    @Override
+    public int applyAsInt(ClusterEvents events)
+    {
+        int count = events.getEvents().size();
+        if (batches.getAndIncrement() % samplePeriod == 0)
+        {
+            try
+            {
+                int size = serializer.serialize(events).length;
+                if (count > 0)
+                    sample((double)size / count);
+                return size;
+            }
+            catch (SerializeException e)
+            {
+                // Образец не получен, пачка оценивается по текущему размеру события.
+            }
+        }
+        return (int)Math.min(Integer.MAX_VALUE, events.getIbName().length() + Math.round(count * eventSize));
+    }
+
+    /**
+     * Возвращает текущий сглаженный размер одного события.
+     *
+     * @return размер в байтах
+     */
+    public double getEventSize()
+    {
+        return eventSize;
+    }
+
+    private synchronized void sample(double size)
+    {
+        // Первый образец заменяет начальное значение, иначе оценка долго оставалась бы произвольной.
+        eventSize = sampled ? eventSize + SAMPLE_ALPHA * (size - eventSize) : size;
+        sampled = true;
+    }
+}
@@ -0,0 +1,269 @@
+---
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+---
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Конвейер разбора сообщений одного раздела временного хранилища. Поток чтения раздела только передает
+ * прочитанные сообщения в {@link #submit(long, byte[])}, а десериализация выполняется в общем для всех разделов
+ * {@link ForkJoinPool}. Результаты разбора упорядочиваются заново, поэтому приемник ({@link ITarget}) получает
+ * события раздела строго в порядке смещений. Приемником может быть буфер событий обработчика раздела или пачка
+ * повторной загрузки ({@link KafkaRangeReplay}).
+ * <p>
+ * Количество сообщений в работе ограничено: при исчерпании {@link #submit(long, byte[])} блокирует поток чтения и,
+ * пока ждет, периодически досылает разобранные сообщения, которые не принял переполненный приемник. Остаток поток
+ * чтения досылает вызовом {@link #awaitDelivered(long, TimeUnit)}. Смещение для фиксации берется из
+ * {@link #getCommitOffset()}: это смещение следующего сообщения, которое нужно прочитать, как и у офсетов группы
+ * потребителей. Приемнику передается размер исходного сообщения.
+ * <p>
+ * Вариант использования:
+ *
+ * <pre>
+ * ShardDecodePipeline pipeline = new ShardDecodePipeline(decodePool, codec::deserialize, bufferController, 64);
+ * for (MessageAndOffset message : messageSet)
+ *     pipeline.submit(message.offset(), payload(message));
+ * pipeline.awaitDelivered(1, TimeUnit.SECONDS);
+ * long offset = pipeline.getCommitOffset();
+ * </pre>
+ * <p>
+ * <b>Synchronization</b>
+ * <p>
+ * Экземпляр данного класса является потокобезопасным. Методы {@link #submit(long, byte[])} вызываются одним потоком
+ * чтения раздела, порядок вызовов задает порядок доставки.
+ */
+public class ShardDecodePipeline
+{
+    /**
+     * Период повторной доставки, пока буфер событий переполнен, мс.
+     */
+    private static final long RETRY_PERIOD = 10;
+    private final ForkJoinPool decodePool;
+    private final IDecoder decoder;
+    private final ITarget target;
+    private final Semaphore slots;
+    private final Map<Long, Decoded> decoded = new HashMap<>();
+    private long nextSubmit;
+    private long nextDeliver;
+    private long commitOffset = -1;
+    private Exception failure;
+
+    /**
+     * Конструктор. Буферу, учитывающему объем ({@link ISizedEventsBuffer}), передается размер исходного сообщения.
+     *
+     * @param decodePool пул разбора, общий для всех разделов
+     * @param decoder разбор сообщения
+     * @param bufferController контроллер буфера событий
+     * @param maxInFlight максимальное количество сообщений в работе
+     */
+    public ShardDecodePipeline(ForkJoinPool decodePool, IDecoder decoder,
+            IKafkaReaderBufferController bufferController, int maxInFlight)
+    {
+        this(decodePool, decoder, toTarget(bufferController), maxInFlight);
+    }
+
+    /**
+     * Конструктор.
+     *
+     * @param decodePool пул разбора, общий для всех разделов
+     * @param decoder разбор сообщения
+     * @param target приемник разобранных событий
+     * @param maxInFlight максимальное количество сообщений в работе
+     */
+    public ShardDecodePipeline(ForkJoinPool decodePool, IDecoder decoder, ITarget target, int maxInFlight)
+    {
+        checkArgument(decodePool != null);
+        checkArgument(decoder != null);
+        checkArgument(target != null);
+        checkArgument(maxInFlight > 0);
+        this.decodePool = decodePool;
+        this.decoder = decoder;
+        this.target = target;
+        this.slots = new Semaphore(maxInFlight);
+    }
+
+    /**
+     * Передает сообщение на разбор.
+     *
+     * @param offset смещение сообщения в разделе
+     * @param payload содержимое сообщения
+     * @throws SerializeException если одно из предыдущих сообщений не удалось разобрать
+     * @throws InterruptedException если поток прерван во время ожидания свободного места
+     */
+    public void submit(long offset, byte[] payload) throws SerializeException, InterruptedException
+    {
+        checkArgument(payload != null);
+        checkFailure();
+        // Места освобождает только доставка. Если все места заняты сообщениями, которые не принял переполненный
+        // буфер, то кроме этого потока их никто не дошлет.
+        while (!slots.tryAcquire(RETRY_PERIOD, TimeUnit.MILLISECONDS))
+        {
+            deliver();
+            checkFailure();
+        }
+        long sequence;
+        synchronized (this)
+        {
+            sequence = nextSubmit++;
+        }
+        decodePool.execute(() -> decode(sequence, offset, payload));
+    }
+
+    /**
+     * Ожидает доставки в приемник всех переданных сообщений.
+     *
+     * @param timeout максимальное время ожидания
+     * @param unit единица измерения времени ожидания
+     * @return {@code true}, если все сообщения доставлены
+     * @throws SerializeException если одно из сообщений не удалось разобрать
+     * @throws InterruptedException если поток прерван во время ожидания
+     */
+    public boolean awaitDelivered(long timeout, TimeUnit unit) throws SerializeException, InterruptedException
+    {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (true)
+        {
+            deliver();
+            checkFailure();
+            synchronized (this)
+            {
+                if (nextDeliver == nextSubmit)
+                    return true;
+                long left = deadline - System.nanoTime();
+                if (left <= 0)
+                    return false;
+                // Места в буфере может не стать без уведомления, поэтому ожидание ограничено периодом повтора.
+                TimeUnit.NANOSECONDS.timedWait(this, Math.min(left, TimeUnit.MILLISECONDS.toNanos(RETRY_PERIOD)));
+            }
+        }
+    }
+
+    /**
+     * Возвращает смещение для фиксации: смещение, следующее за последним сообщением, доставленным в приемник.
+     *
+     * @return смещение следующего сообщения для чтения, -1 - если ничего не доставлено
+     */
+    public synchronized long getCommitOffset()
+    {
+        return commitOffset;
+    }
+
+    private void decode(long sequence, long offset, byte[] payload)
+    {
+        Decoded result;
+        try
+        {
+            result = new Decoded(offset, decoder.decode(payload), payload.length, null);
+        }
+        catch (SerializeException | RuntimeException e)
+        {
+            result = new Decoded(offset, null, 0, e);
+        }
+        synchronized (this)
+        {
+            decoded.put(sequence, result);
+        }
+        deliver();
+    }
+
+    /**
+     * Доставляет в приемник разобранные сообщения, идущие подряд от следующего ожидаемого.
+     */
+    private synchronized void deliver()
+    {
+        while (failure == null)
+        {
+            Decoded next = decoded.get(nextDeliver);
+            if (next == null)
+                break;
+            if (next.error != null)
+            {
+                failure = next.error;
+                break;
+            }
+            if (next.events != null && !target.offer(next.events, next.bytes))
+                break;
+            decoded.remove(nextDeliver);
+            ++nextDeliver;
+            commitOffset = next.offset + 1;
+            slots.release();
+        }
+        notifyAll();
+    }
+
+    private static ITarget toTarget(IKafkaReaderBufferController bufferController)
+    {
+        checkArgument(bufferController != null);
+        if (bufferController instanceof ISizedEventsBuffer)
+            return ((ISizedEventsBuffer)bufferController)::addEvents;
+        return (events, bytes) -> bufferController.addEvents(events);
+    }
+
+    private synchronized void checkFailure() throws SerializeException
+    {
+        if (failure != null)
+            throw new SerializeException(Messages.failed_decode(), failure);
+    }
+
+    /**
+     * Разбор сообщения временного хранилища.
+     */
+    @FunctionalInterface
+    public interface IDecoder
+    {
+        /**
+         * Разбирает сообщение.
+         *
+         * @param payload содержимое сообщения
+         * @return события, {@code null} - в сообщении нет событий для буфера
+         * @throws SerializeException при ошибке разбора
+         */
+        ClusterEvents decode(byte[] payload) throws SerializeException;
+    }
+
+    /**
+     * Приемник разобранных событий раздела. Вызывается под монитором конвейера, строго в порядке смещений.
+     */
+    @FunctionalInterface
+    public interface ITarget
+    {
+        /**
+         * Принимает события одного сообщения.
+         *
+         * @param events события
+         * @param bytes размер исходного сообщения в байтах
+         * @return {@code true}, если события приняты, {@code false} - приемник переполнен, доставка будет повторена
+         */
+        boolean offer(ClusterEvents events, int bytes);
+    }
+
+    private static final class Decoded
+    {
+        private final long offset;
+        private final ClusterEvents events;
+        private final int bytes;
+        private final Exception error;
+
+        private Decoded(long offset, ClusterEvents events, int bytes, Exception error)
+        {
+            this.offset = offset;
+            this.events = events;
+            this.bytes = bytes;
+            this.error = error;
+        }
+    }
+
+    @Localizable
+    interface IMessagesList
+    {
+        IMessagesList Messages = LocalizableFactory.create(IMessagesList.class);
+
+        @DefaultString("Cannot decode message of the shard.")
+        @Context("Ошибка разбора сообщения временного хранилища в конвейере разбора раздела.")
+        @Tags({"logs"})
+        String failed_decode();
+    }
+}
@@ -0,0 +1,109 @@
+---
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Снимок показателей чтения одного раздела временного хранилища.
+ * <p>
+ * <b>Synchronization</b>
+ * <p>
+ * Экземпляр данного класса является неизменяемым.
+ *
+ * @see IKafkaReaderMetrics
+ */
+public final class ShardReadMetrics
+{
+    private final Shard shard;
+    private final long position;
+    private final long highWatermark;
+    private final double messagesPerSecond;
+    private final double bytesPerSecond;
+
+    /**
+     * Конструктор.
+     *
+     * @param shard раздел
+     * @param position текущая позиция чтения, -1 - неизвестна
+     * @param highWatermark конец журнала раздела, -1 - неизвестен
+     * @param messagesPerSecond прочитано сообщений в секунду
+     * @param bytesPerSecond прочитано байтов в секунду
+     */
+    public ShardReadMetrics(Shard shard, long position, long highWatermark, double messagesPerSecond,
+            double bytesPerSecond)
+    {
+        checkArgument(shard != null);
+        this.shard = shard;
+        this.position = position;
+        this.highWatermark = highWatermark;
+        this.messagesPerSecond = messagesPerSecond;
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * Возвращает раздел.
+     *
+     * @return раздел
+     */
+    public Shard getShard()
+    {
+        return shard;
+    }
+
+    /**
+     * Возвращает текущую позицию чтения.
+     *
+     * @return позиция, -1 - неизвестна
+     */
+    public long getPosition()
+    {
+        return position;
+    }
+
+    /**
+     * Возвращает конец журнала раздела (high watermark).
+     *
+     * @return смещение, -1 - неизвестно
+     */
+    public long getHighWatermark()
+    {
+        return highWatermark;
+    }
+
+    /**
+     * Возвращает отставание чтения от конца журнала раздела в сообщениях.
+     *
+     * @return отставание, -1 - неизвестно
+     */
+    public long getLag()
+    {
+        if (position < 0 || highWatermark < 0)
+            return -1;
+        return Math.max(0, highWatermark - position);
+    }
+
+    /**
+     * Возвращает скорость чтения в сообщениях в секунду.
+     *
+     * @return скорость
+     */
+    public double getMessagesPerSecond()
+    {
+        return messagesPerSecond;
+    }
+
+    /**
+     * Возвращает скорость чтения в байтах в секунду.
+     *
+     * @return скорость
+     */
+    public double getBytesPerSecond()
+    {
+        return bytesPerSecond;
+    }
+
+    @Override
+    public String toString()
+    {
+        return shard.getShardNumber() + ": position=" + position + ", highWatermark=" + highWatermark + ", lag="
+                + getLag() + ", messages/s=" + messagesPerSecond + ", bytes/s=" + bytesPerSecond;
+    }
+}
@@ -0,0 +1,88 @@
+---
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+---
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Результат записи событий с учетом перегрузки временного хранилища: события либо приняты к отправке, либо
+ * отклонены с рекомендацией, через сколько повторить попытку.
+ * <p>
+ * Вариант использования:
+ *
+ * <pre>
+ * WriteResult result = kafkaWriter.tryWrite(events, id);
+ * if (!result.isAccepted())
+ *     delay(result.getRetryAfter(TimeUnit.MILLISECONDS));
+ * </pre>
+ * <p>
+ * <b>Synchronization</b>
+ * <p>
+ * Экземпляр данного класса является неизменяемым.
+ */
+public final class WriteResult
+{
+    private final CompletableFuture<Boolean> completion;
+    private final long retryAfterNanos;
+
+    private WriteResult(CompletableFuture<Boolean> completion, long retryAfterNanos)
+    {
+        this.completion = completion;
+        this.retryAfterNanos = retryAfterNanos;
+    }
+
+    /**
+     * Создает результат для принятых событий.
+     *
+     * @param completion завершается после подтверждения отправки
+     * @return результат
+     */
+    public static WriteResult accepted(CompletableFuture<Boolean> completion)
+    {
+        checkArgument(completion != null);
+        return new WriteResult(completion, 0);
+    }
+
+    /**
+     * Создает результат для отклоненных событий.
+     *
+     * @param retryAfterNanos через сколько повторить попытку, в наносекундах
+     * @return результат
+     */
+    public static WriteResult rejected(long retryAfterNanos)
+    {
+        checkArgument(retryAfterNanos >= 0);
+        return new WriteResult(null, retryAfterNanos);
+    }
+
+    /**
+     * Проверяет, приняты ли события к отправке.
+     *
+     * @return {@code true}, если приняты
+     */
+    public boolean isAccepted()
+    {
+        return completion != null;
+    }
+
+    /**
+     * Возвращает future подтверждения отправки принятых событий.
+     *
+     * @return future или {@code null}, если события отклонены
+     */
+    public CompletableFuture<Boolean> getCompletion()
+    {
+        return completion;
+    }
+
+    /**
+     * Возвращает, через сколько имеет смысл повторить запись отклоненных событий.
+     *
+     * @param unit единица измерения
+     * @return время, 0 - если события приняты
+     */
+    public long getRetryAfter(TimeUnit unit)
+    {
+        return unit.convert(retryAfterNanos, TimeUnit.NANOSECONDS);
+    }
+}